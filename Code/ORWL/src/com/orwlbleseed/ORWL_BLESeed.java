@@ -4,6 +4,7 @@
  * Applet AID: A0 00 00 07 38 02
  * Applet supports following operation
  * 1. Retrieval of BLE seed stored during authentication process in ORWL_Keypair applet
+ * 2. Multiselectable, ORWL_Keypair can stay selected on another logical channel
  */
 package com.orwlbleseed;
 
@@ -15,18 +16,22 @@ import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
 
-public class ORWL_BLESeed extends Applet {
+public class ORWL_BLESeed extends Applet implements MultiSelectable {
 
 	/**Supported Class byte by this applet*/
 	public final static byte CLA = (byte) 0x90;
+	/** Logical channel bits of the class byte*/
+	final static byte CLA_CHANNEL_MASK = (byte) 0x03;
 
 	/**Supported INS bytes by this applet*/
 	final static byte INS_GET_BLE_SEED = (byte) 0x40;
 
 	/** AID instance*/
 	AID keyPairAppletAID;
-	private ORWL_Interface orwlInterfaceInst;
+	/** ORWL_Keypair shareable interface object, looked up once per card session*/
+	private Object[] orwlInterfaceInst;
 	/** ORWL_Keypair AID*/
 	byte[] aidBuffer = {(byte) 0xA0, 0x00, 0x00, 0x07, 0x38, 0x01};
 
@@ -41,6 +46,7 @@ public class ORWL_BLESeed extends Applet {
 	public ORWL_BLESeed(byte[] bArray, short bOffset, byte bLength) {
 		/** ORWL_Keypair applet AID object*/
 		keyPairAppletAID = JCSystem.lookupAID(aidBuffer, (short) 0, (byte) aidBuffer.length);
+		orwlInterfaceInst = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
 		/** The first byte of bArray is the length of the instance AID bytes*/
 		register(bArray, (short) (bOffset + 1), bArray[bOffset]);
 	}
@@ -59,6 +65,20 @@ public class ORWL_BLESeed extends Applet {
 		new ORWL_BLESeed(bArray, bOffset, bLength);
 	}
 
+	/**
+	 * Called by the JCRE when the applet is selected on a logical channel while it is already active on another one,
+	 * the applet keeps no per channel state
+	 */
+	public boolean select(boolean appInstAlreadyActive) {
+		return true;
+	}
+
+	/**
+	 * Called by the JCRE when the applet is deselected on a logical channel while it stays active on another one
+	 */
+	public void deselect(boolean appInstStillActive) {
+	}
+
 	/**
 	 * Processes an incoming APDU
 	 */
@@ -67,17 +87,16 @@ public class ORWL_BLESeed extends Applet {
 		/** check SELECT APDU command*/
 		if (selectingApplet())
 			return;
-		else if(buffer[ISO7816.OFFSET_CLA] != CLA)
+		else if((byte) (buffer[ISO7816.OFFSET_CLA] & ~CLA_CHANNEL_MASK) != CLA)
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 		else if (buffer[ISO7816.OFFSET_P2] != 0 || buffer[ISO7816.OFFSET_P1] != 0)
 			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 		/**Associate particular command to particular method*/
 		switch (buffer[ISO7816.OFFSET_INS]) {
 			case INS_GET_BLE_SEED:
-				/**ORWL_Keypair applet shareable interface object*/
-				orwlInterfaceInst = (ORWL_Interface) JCSystem.getAppletShareableInterfaceObject(keyPairAppletAID, (byte) 0);
-				/**Retrieval of BLE seed value from ORWL_Keypair applet and send as response*/
-				short outputLen = orwlInterfaceInst.retrieveBleSeed(buffer, (short)0);
+				/**Retrieval of BLE seed value from ORWL_Keypair applet directly into the APDU buffer and send as response,
+				 * ORWL_Keypair returns the seed once whether or not it is selected on another logical channel*/
+				short outputLen = getKeypairInterface().retrieveBleSeed(buffer, (short)0);
 				apdu.setOutgoingAndSend((short)0, outputLen);
 				break;
 			default:
@@ -85,4 +104,23 @@ public class ORWL_BLESeed extends Applet {
 		}
 	}
 
+	/**
+	 * Returns the ORWL_Keypair applet shareable interface object, the firewall lookup is done
+	 * only on the first seed retrieval of the card session
+	 * @exception ISOException - 69 85 if ORWL_Keypair is not installed or refuses the interface
+	 */
+	private ORWL_Interface getKeypairInterface() {
+		if (orwlInterfaceInst[0] == null) {
+			/** ORWL_Keypair may have been installed after this applet*/
+			if (keyPairAppletAID == null)
+				keyPairAppletAID = JCSystem.lookupAID(aidBuffer, (short) 0, (byte) aidBuffer.length);
+			if (keyPairAppletAID == null)
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			orwlInterfaceInst[0] = JCSystem.getAppletShareableInterfaceObject(keyPairAppletAID, (byte) 0);
+			if (orwlInterfaceInst[0] == null)
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+		return (ORWL_Interface) orwlInterfaceInst[0];
+	}
+
 }
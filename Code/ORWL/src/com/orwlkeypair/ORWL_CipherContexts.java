@@ -0,0 +1,58 @@
+/**
+ * Package AID: A0 00 00 07 38 0A
+ * Cipher contexts of one algorithm, shared by the cipher suites of every host slot
+ * 1. One context per key and direction, bound to the keys of a single suite at a time
+ * 2. Records the suite bound to each context group, a suite of another host slot binds them again before use
+ */
+package com.orwlkeypair;
+
+import javacard.framework.JCSystem;
+import javacardx.crypto.Cipher;
+
+class ORWL_CipherContexts {
+
+	/** Context groups, the ECDH secret key contexts and the seedX and seedY contexts */
+	static final short GROUP_SESSION = 0;
+	static final short GROUP_SEED = 1;
+
+	/** Cipher contexts of the algorithm */
+	Cipher sessionEncryptCipher;
+	Cipher sessionDecryptCipher;
+	Cipher seedXDecryptCipher;
+	Cipher seedYEncryptCipher;
+
+	/** Cipher suite bound to each context group, kept per card session */
+	private Object[] boundSuite;
+
+	/**
+	 * Creates the cipher contexts of a suite algorithm
+	 * @param suite - ORWL_CipherSuite.SUITE_3DES or ORWL_CipherSuite.SUITE_AES_128
+	 */
+	ORWL_CipherContexts(byte suite) {
+		byte algorithm = suite == ORWL_CipherSuite.SUITE_AES_128 ? Cipher.ALG_AES_BLOCK_128_CBC_NOPAD : Cipher.ALG_DES_CBC_NOPAD;
+		sessionEncryptCipher = Cipher.getInstance(algorithm, false);
+		sessionDecryptCipher = Cipher.getInstance(algorithm, false);
+		seedXDecryptCipher = Cipher.getInstance(algorithm, false);
+		seedYEncryptCipher = Cipher.getInstance(algorithm, false);
+		boundSuite = JCSystem.makeTransientObjectArray((short) 2, JCSystem.CLEAR_ON_RESET);
+	}
+
+	/**
+	 * Checks that the contexts of the group are bound to the keys of the suite
+	 * @param group - GROUP_SESSION or GROUP_SEED
+	 * @param suite - cipher suite of a host slot
+	 */
+	boolean isBound(short group, ORWL_CipherSuite suite) {
+		return boundSuite[group] == suite;
+	}
+
+	/**
+	 * Records the suite whose keys the contexts of the group are bound to, null once its keys are cleared
+	 * @param group - GROUP_SESSION or GROUP_SEED
+	 * @param suite - cipher suite of a host slot
+	 */
+	void bind(short group, ORWL_CipherSuite suite) {
+		boundSuite[group] = suite;
+	}
+
+}
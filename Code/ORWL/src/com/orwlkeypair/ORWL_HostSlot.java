@@ -0,0 +1,178 @@
+/**
+ * Package AID: A0 00 00 07 38 0A
+ * Association of the KeyFOB with a single ORWL device, ORWL_Keypair holds a fixed table of them
+ * 1. Record in the persistent state block of ORWL_Keypair: status bitfield, host identifier and the secrets at fixed offsets
+ * 2. KeyFOB name, BLE seed and its authentication response, shared seedX and seedY, HMAC authentication key,
+ *    fast unlock key and the ORWL public key it was agreed with
+ * 3. 3DES and AES cipher suites with their own key objects, so switching hosts needs no key setup, the cipher contexts are shared
+ */
+package com.orwlkeypair;
+
+import javacard.framework.Util;
+
+class ORWL_HostSlot {
+
+	/** Lengths of the KeyFOB name, the BLE seed, its encrypted message digest and of seedX and seedY sized for the longest suite key */
+	static final short NAME_LENGTH = 19;
+	static final short SEED_LENGTH = 40;
+	static final short SEED_AUTH_LENGTH = 32;
+	static final short SHARED_SEED_LENGTH = 24;
+
+	/** Length of the HMAC authentication key derived from seedY and the ECDH secret key, a SHA-1 digest */
+	static final short AUTH_KEY_LENGTH = 20;
+
+	/** Length of the fast unlock key derived from the static ECDH secret, a SHA-1 digest, and of the uncompressed ORWL public key on P-256 */
+	static final short UNLOCK_KEY_LENGTH = 20;
+	static final short HOST_PUBLIC_KEY_LENGTH = 65;
+
+	/** Status bits of the slot record, every status check is a single mask test */
+	static final byte STATUS_KEY_ASSOCIATED = (byte) 0x01;
+	static final byte STATUS_SEEDX_SAVED = (byte) 0x02;
+	static final byte STATUS_NAME_ASSOCIATED = (byte) 0x04;
+	static final byte STATUS_SEED_AUTH_READY = (byte) 0x08;
+	static final byte STATUS_HMAC_AUTH = (byte) 0x20;
+	static final byte STATUS_SEED_RATCHET = (byte) 0x40;
+
+	/** Last completed step of the association, reported by INS 25 so that the ORWL device resumes after a field loss */
+	static final byte STEP_NONE = (byte) 0x00;
+	static final byte STEP_SECRET_KEY = (byte) 0x01;
+	static final byte STEP_CONFIRMED = (byte) 0x02;
+	static final byte STEP_SEED_X = (byte) 0x03;
+	static final byte STEP_SEED_Y = (byte) 0x04;
+	static final byte STEP_COMMITTED = (byte) 0x05;
+
+	/**
+	 * Offsets in the slot record. The status is followed by the host identifier so that both are written at once,
+	 * the BLE seed is followed by its authentication response so that both are stored with a single copy
+	 */
+	static final short OFFSET_STATUS = 0;
+	static final short OFFSET_HOST_ID = 1;
+	static final short OFFSET_SEED_AUTH_LENGTH = 2;
+	static final short OFFSET_NAME = 3;
+	static final short OFFSET_SEED = OFFSET_NAME + NAME_LENGTH;
+	static final short OFFSET_SEED_AUTH = OFFSET_SEED + SEED_LENGTH;
+	static final short OFFSET_SEED_X = OFFSET_SEED_AUTH + SEED_AUTH_LENGTH;
+	static final short OFFSET_SEED_Y = OFFSET_SEED_X + SHARED_SEED_LENGTH;
+	static final short OFFSET_AUTH_KEY = OFFSET_SEED_Y + SHARED_SEED_LENGTH;
+	static final short OFFSET_UNLOCK_KEY = OFFSET_AUTH_KEY + AUTH_KEY_LENGTH;
+	/** Length byte followed by the ORWL public key as received, compressed or not */
+	static final short OFFSET_HOST_PUBLIC_KEY = OFFSET_UNLOCK_KEY + UNLOCK_KEY_LENGTH;
+	static final short OFFSET_ASSOCIATION_STEP = OFFSET_HOST_PUBLIC_KEY + 1 + HOST_PUBLIC_KEY_LENGTH;
+	/** Elliptic curve selected with INS 11 for the association */
+	static final short OFFSET_CURVE = OFFSET_ASSOCIATION_STEP + 1;
+	static final short RECORD_LENGTH = OFFSET_CURVE + 1;
+
+	/** Persistent state block of ORWL_Keypair and the offset of the slot record in it */
+	byte[] state;
+	private short base;
+
+	/** Cipher suites of the slot and the suite negotiated during association */
+	ORWL_CipherSuite des3Suite;
+	ORWL_CipherSuite aesSuite;
+	ORWL_CipherSuite cipherSuite;
+
+	/**
+	 * Binds the slot to its record and allocates the key objects of a slot
+	 * @param state - persistent state block holding RECORD_LENGTH bytes for the slot
+	 * @param base - offset of the slot record
+	 * @param des3Contexts - 3DES cipher contexts shared by the host slots
+	 * @param aesContexts - AES cipher contexts shared by the host slots
+	 */
+	ORWL_HostSlot(byte[] state, short base, ORWL_CipherContexts des3Contexts, ORWL_CipherContexts aesContexts) {
+		this.state = state;
+		this.base = base;
+		des3Suite = new ORWL_CipherSuite(ORWL_CipherSuite.SUITE_3DES, des3Contexts);
+		aesSuite = new ORWL_CipherSuite(ORWL_CipherSuite.SUITE_AES_128, aesContexts);
+		cipherSuite = des3Suite;
+	}
+
+	/**
+	 * Returns the offset of a field of the slot record in the state block
+	 * @param field - OFFSET_ constant of the field
+	 */
+	short offset(short field) {
+		return (short) (base + field);
+	}
+
+	/**
+	 * Returns the status bits selected by the mask
+	 * @param mask - STATUS_ bits to test
+	 */
+	byte status(byte mask) {
+		return (byte) (state[base] & mask);
+	}
+
+	/**
+	 * Checks that every status bit of the mask is set
+	 * @param bits - STATUS_ bits to test
+	 */
+	boolean hasStatus(byte bits) {
+		return (byte) (state[base] & bits) == bits;
+	}
+
+	/**
+	 * Sets status bits, a single byte update
+	 * @param bits - STATUS_ bits to set
+	 */
+	void setStatus(byte bits) {
+		state[base] |= bits;
+	}
+
+	/**
+	 * Resets status bits, a single byte update
+	 * @param bits - STATUS_ bits to reset
+	 */
+	void resetStatus(byte bits) {
+		state[base] &= (byte) ~bits;
+	}
+
+	/**
+	 * Returns the host identifier of the ORWL device, sent in P1 of INS 1C
+	 */
+	byte hostId() {
+		return state[(short) (base + OFFSET_HOST_ID)];
+	}
+
+	/**
+	 * Returns the last completed step of the association
+	 */
+	byte associationStep() {
+		return state[(short) (base + OFFSET_ASSOCIATION_STEP)];
+	}
+
+	/**
+	 * Returns the elliptic curve of the association
+	 */
+	byte curve() {
+		return state[(short) (base + OFFSET_CURVE)];
+	}
+
+	/**
+	 * Returns the length of the encrypted message digest of the ble challenge
+	 */
+	short seedAuthLength() {
+		return (short) (state[(short) (base + OFFSET_SEED_AUTH_LENGTH)] & 0xFF);
+	}
+
+	/**
+	 * Clears the association status and binds the slot to a host identifier, called inside a transaction
+	 * @param host - host identifier the slot is bound to
+	 */
+	void clearStatus(byte host) {
+		/** The status and the host identifier are adjacent, a single update writes both */
+		Util.setShort(state, base, (short) (host & 0xFF));
+		cipherSuite = des3Suite;
+	}
+
+	/**
+	 * Wipes the secrets of a slot whose status has been cleared, a torn wipe is harmless
+	 * @return number of persistent updates, the record and 6 keys
+	 */
+	short wipe() {
+		Util.arrayFillNonAtomic(state, offset(OFFSET_SEED_AUTH_LENGTH), (short) (RECORD_LENGTH - OFFSET_SEED_AUTH_LENGTH), (byte) 0x00);
+		des3Suite.clearKeys();
+		aesSuite.clearKeys();
+		return (short) 7;
+	}
+
+}
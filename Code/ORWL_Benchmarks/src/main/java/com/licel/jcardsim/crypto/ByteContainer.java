@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Licel LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import java.math.BigInteger;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.CryptoException;
+
+/**
+ * Copy of the jCardSim 3.0.5.11 class that shadows it on the class path of this module.
+ * The array of a value is reused by a shorter value, getBigInteger read the whole array, so that a key
+ * regenerated with a leading zero byte (one EC private key in 256) kept a stale trailing byte and the ECDH of
+ * ORWL_Keypair failed after its keypair rotation. getBigInteger reads the value length only, the rest is unchanged
+ */
+public final class ByteContainer {
+
+	private byte[] data;
+	private byte memoryType;
+	private short length;
+
+	public ByteContainer() {
+		this(JCSystem.MEMORY_TYPE_PERSISTENT);
+	}
+
+	public ByteContainer(byte memoryType) {
+		length = 0;
+		this.memoryType = memoryType;
+	}
+
+	public ByteContainer(BigInteger bInteger) {
+		length = 0;
+		setBigInteger(bInteger);
+	}
+
+	public ByteContainer(byte[] buff, short offset, short length) {
+		this.length = 0;
+		setBytes(buff, offset, length);
+	}
+
+	public void setBigInteger(BigInteger bInteger) {
+		if (bInteger.signum() < 0)
+			throw new IllegalArgumentException("Negative bInteger");
+		byte[] array = bInteger.toByteArray();
+		if (array[0] == 0 && array.length > 1) {
+			byte[] trimmed = new byte[array.length - 1];
+			System.arraycopy(array, 1, trimmed, 0, trimmed.length);
+			setBytes(trimmed);
+		}
+		else
+			setBytes(array);
+	}
+
+	public void setBytes(byte[] buff) {
+		setBytes(buff, (short) 0, (short) buff.length);
+	}
+
+	public void setBytes(byte[] buff, short offset, short length) {
+		if (data == null || (short) data.length < length) {
+			switch (memoryType) {
+				case JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT:
+				case JCSystem.MEMORY_TYPE_TRANSIENT_RESET:
+					data = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_DESELECT);
+					break;
+				default:
+					data = new byte[length];
+			}
+		}
+		Util.arrayCopy(buff, offset, data, (short) 0, length);
+		this.length = length;
+	}
+
+	public BigInteger getBigInteger() {
+		if (length == 0)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		return new BigInteger(1, data, 0, length);
+	}
+
+	public byte[] getBytes(byte event) {
+		if (length == 0)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		byte[] result = JCSystem.makeTransientByteArray(length, event);
+		getBytes(result, (short) 0);
+		return result;
+	}
+
+	public short getBytes(byte[] dest, short offset) {
+		if (length == 0)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		if (dest.length - offset < length)
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		Util.arrayCopy(data, (short) 0, dest, offset, length);
+		return length;
+	}
+
+	public void clear() {
+		if (data != null)
+			Util.arrayFillNonAtomic(data, (short) 0, (short) data.length, (byte) 0);
+		length = 0;
+	}
+
+	public boolean isInitialized() {
+		return length > 0;
+	}
+}
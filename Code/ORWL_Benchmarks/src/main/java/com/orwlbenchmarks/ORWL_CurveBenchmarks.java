@@ -0,0 +1,79 @@
+/**
+ * Throughput of the curve dependent commands on the simulated card, per curve of the association
+ * 1. keyExchange: INS 11 and INS 12, the ECDH of the ORWL public key with the current keypair
+ * 2. keyPairRotation: INS 26 regenerates the keypair retired by the association committed before every invocation
+ * Run with java -jar target/benchmarks.jar ORWL_CurveBenchmarks -prof gc
+ */
+package com.orwlbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ORWL_CurveBenchmarks {
+
+	/**
+	 * A card without association, the curve of the association is the benchmark parameter
+	 */
+	@State(Scope.Thread)
+	public static class CurveCard {
+		@Param({"P-192", "P-256"})
+		public String curve;
+
+		ORWL_Host host;
+		int curveIndex;
+		CommandAPDU publicKey;
+		CommandAPDU generateSecret;
+		CommandAPDU prepareKeyPair;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			host = new ORWL_Host();
+			curveIndex = "P-256".equals(curve) ? ORWL_Host.CURVE_P256 : ORWL_Host.CURVE_P192;
+			publicKey = host.publicKeyCommand(curveIndex);
+			generateSecret = host.generateSecretCommand(curveIndex);
+			prepareKeyPair = host.prepareKeyPairCommand();
+		}
+	}
+
+	/**
+	 * An association retires the current keypair of the curve before every invocation, the host slot is freed for the next one
+	 */
+	@State(Scope.Thread)
+	public static class RotatedCard extends CurveCard {
+		@Setup(Level.Invocation)
+		public void associate() {
+			host.associate(curveIndex);
+			host.send(host.freeSlotCommand());
+		}
+	}
+
+	@Benchmark
+	public byte[] keyExchange(CurveCard card) {
+		card.host.send(card.publicKey);
+		return card.host.send(card.generateSecret);
+	}
+
+	@Benchmark
+	public byte[] keyPairRotation(RotatedCard card) {
+		return card.host.send(card.prepareKeyPair);
+	}
+}
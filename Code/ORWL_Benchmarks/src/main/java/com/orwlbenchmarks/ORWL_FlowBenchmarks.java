@@ -0,0 +1,104 @@
+/**
+ * Throughput of the ORWL flows on the simulated card, one benchmark per flow
+ * 1. association: select, INS 11, 12, 10, 18, 19 and 17, then INS 1D P1 01 frees the slot for the next one
+ * 2. seedSave: INS 15 of an associated host slot
+ * 3. seedAuthenticate: INS 16 of a saved seed
+ * 4. bleRetrieval: select ORWL_BLESeed and INS 40, INS 16 rearms the ratchet seed between invocations
+ * Run with java -jar target/benchmarks.jar ORWL_FlowBenchmarks -prof gc, the commands are built in the setup
+ * so that the host cryptography is not measured, except the host ECDH of INS 12 in the association
+ */
+package com.orwlbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ORWL_FlowBenchmarks {
+
+	/**
+	 * A card with an association of the default host slot, the seed flows run on it
+	 */
+	@State(Scope.Thread)
+	public static class AssociatedCard {
+		ORWL_Host host;
+		CommandAPDU seedSave;
+		CommandAPDU seedAuthenticate;
+		CommandAPDU bleSeed;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			host = new ORWL_Host();
+			host.associate(ORWL_Host.CURVE_P192);
+			seedSave = host.seedSaveCommand(ORWL_Host.P1_SEED_RATCHET);
+			seedAuthenticate = host.seedAuthenticateCommand();
+			bleSeed = host.bleSeedCommand();
+			host.send(seedSave);
+		}
+	}
+
+	/**
+	 * A card with a ratchet seed ready for the retrieval, ORWL_Keypair computes the response of the next seed
+	 * with INS 16 before every retrieval as the KeyFOB does
+	 */
+	@State(Scope.Thread)
+	public static class SeedReadyCard extends AssociatedCard {
+		@Setup(Level.Invocation)
+		public void rearm() {
+			host.selectKeypair();
+			host.send(seedAuthenticate);
+		}
+	}
+
+	/**
+	 * A card without association, the host slot is freed after every association
+	 */
+	@State(Scope.Thread)
+	public static class FreshCard {
+		ORWL_Host host;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			host = new ORWL_Host();
+		}
+	}
+
+	@Benchmark
+	public byte[] association(FreshCard card) {
+		card.host.selectKeypair();
+		card.host.associate(ORWL_Host.CURVE_P192);
+		return card.host.send(card.host.freeSlotCommand());
+	}
+
+	@Benchmark
+	public byte[] seedSave(AssociatedCard card) {
+		return card.host.send(card.seedSave);
+	}
+
+	@Benchmark
+	public byte[] seedAuthenticate(AssociatedCard card) {
+		return card.host.send(card.seedAuthenticate);
+	}
+
+	@Benchmark
+	public byte[] bleRetrieval(SeedReadyCard card) {
+		card.host.selectBleSeed();
+		return card.host.send(card.bleSeed);
+	}
+}
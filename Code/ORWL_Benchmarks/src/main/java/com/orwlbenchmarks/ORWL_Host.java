@@ -0,0 +1,310 @@
+/**
+ * Host side of the ORWL applets on a jCardSim card
+ * The ORWL_Keypair and ORWL_BLESeed applets of Code/ORWL are installed on a simulated card,
+ * the host builds the APDUs of the association, seed save, seed authenticate and BLE retrieval flows
+ * with the 3DES suite and keeps the keys it shares with the card to check the responses
+ */
+package com.orwlbenchmarks;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javacard.framework.AID;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECPoint;
+
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+public class ORWL_Host {
+
+	/** ORWL_Keypair and ORWL_BLESeed AIDs*/
+	public static final byte[] KEYPAIR_AID = {(byte) 0xA0, 0x00, 0x00, 0x07, 0x38, 0x01};
+	public static final byte[] BLESEED_AID = {(byte) 0xA0, 0x00, 0x00, 0x07, 0x38, 0x02};
+
+	/** Class byte and INS bytes of the applets*/
+	public static final int CLA = 0x90;
+	public static final int INS_CONFIRM_SECRET_KEY = 0x10;
+	public static final int INS_GET_PUBLIC_KEY = 0x11;
+	public static final int INS_GENERATE_SECRET_KEY = 0x12;
+	public static final int INS_SAVE_SEED_KEY = 0x15;
+	public static final int INS_AUTH_SEED_KEY = 0x16;
+	public static final int INS_SAVE_SECRET_KEYS = 0x17;
+	public static final int INS_SAVE_SHARE_SEED_X = 0x18;
+	public static final int INS_GET_SHARE_SEED_Y = 0x19;
+	public static final int INS_HOST_SLOTS = 0x1D;
+	public static final int INS_PREPARE_KEYPAIR = 0x26;
+	public static final int INS_GET_COUNTERS = 0xCA;
+	public static final int INS_GET_BLE_SEED = 0x40;
+
+	/** INS 11 curves, INS 15 seed modes, INS 1D free slot and INS CA pages*/
+	public static final int CURVE_P192 = 0x00;
+	public static final int CURVE_P256 = 0x01;
+	public static final int P1_SEED_ONCE = 0x00;
+	public static final int P1_SEED_RATCHET = 0x01;
+	public static final int P1_FREE_HOST_SLOT = 0x01;
+	public static final int P1_PERFORMANCE_COUNTERS = 0x00;
+	public static final int P1_EEPROM_WRITES = 0x01;
+
+	/** Status word of a successful command*/
+	public static final int SW_NO_ERROR = 0x9000;
+
+	/** Lengths of the 3DES suite, of the BLE seed and of its authenticated challenge*/
+	public static final int KEY_LENGTH = 24;
+	public static final int BLOCK_LENGTH = 8;
+	public static final int SEED_LENGTH = 40;
+	public static final int CHALLENGE_LENGTH = 32;
+
+	/** Sample data of INS 10 and the CBC IV of the 3DES suite*/
+	private static final byte[] sampleData = {0x4f, 0x52, 0x57, 0x4c, 0x4b, 0x45, 0x59, 0x46};
+	private static final byte[] desIVVal = {0x0f, 0x1e, 0x2d, 0x3c, 0x4b, 0x5a, 0x69, 0x78};
+
+	/** Host identifier of the default host slot*/
+	private static final byte DEFAULT_HOST_ID = 0x00;
+
+	private static final String[] curveNames = {"secp192r1", "secp256r1"};
+
+	private final CardSimulator card;
+	private final SecureRandom random = new SecureRandom();
+	private final X9ECParameters[] curves = new X9ECParameters[curveNames.length];
+	/** Static host keypair of each curve, the card rotates its own keypair after every association*/
+	private final BigInteger[] hostPrivateKeys = new BigInteger[curveNames.length];
+	private final byte[][] hostPublicKeys = new byte[curveNames.length][];
+
+	/** Keys shared with the card by the last association and the last saved seed*/
+	private byte[] sessionKey;
+	private byte[] seedX;
+	private byte[] seedY;
+	private byte[] seed;
+
+	/**
+	 * Installs ORWL_Keypair and then ORWL_BLESeed, which looks up the shareable interface of ORWL_Keypair,
+	 * and selects ORWL_Keypair
+	 */
+	public ORWL_Host() {
+		this(new SimulatorRuntime());
+	}
+
+	/**
+	 * Installs the applets on a card of the given runtime, a test passes a runtime that observes the card memory
+	 */
+	public ORWL_Host(SimulatorRuntime runtime) {
+		card = new CardSimulator(runtime);
+		install(KEYPAIR_AID, "com.orwlkeypair.ORWL_Keypair");
+		install(BLESEED_AID, "com.orwlbleseed.ORWL_BLESeed");
+		for (int i = 0; i < curveNames.length; i++) {
+			curves[i] = ECNamedCurveTable.getByName(curveNames[i]);
+			BigInteger order = curves[i].getN();
+			hostPrivateKeys[i] = new BigInteger(order.bitLength() - 1, random).add(BigInteger.ONE);
+			hostPublicKeys[i] = curves[i].getG().multiply(hostPrivateKeys[i]).getEncoded(false);
+		}
+		selectKeypair();
+	}
+
+	/**
+	 * The install parameters carry the instance AID length-prefixed as the applet constructors register it
+	 */
+	private void install(byte[] aid, String appletClass) {
+		byte[] bArray = new byte[aid.length + 1];
+		bArray[0] = (byte) aid.length;
+		System.arraycopy(aid, 0, bArray, 1, aid.length);
+		card.installApplet(new AID(aid, (short) 0, (byte) aid.length), appletClass, bArray, (short) 0, (byte) bArray.length);
+	}
+
+	/**
+	 * Selects ORWL_Keypair, the select regenerates the keypairs retired by earlier associations
+	 */
+	public void selectKeypair() {
+		card.selectApplet(new AID(KEYPAIR_AID, (short) 0, (byte) KEYPAIR_AID.length));
+	}
+
+	/**
+	 * Selects ORWL_BLESeed, as the ORWL device does before the seed retrieval
+	 */
+	public void selectBleSeed() {
+		card.selectApplet(new AID(BLESEED_AID, (short) 0, (byte) BLESEED_AID.length));
+	}
+
+	/**
+	 * Builds a command of the applets class
+	 * @param data - command data or null for a command without data
+	 */
+	public static CommandAPDU command(int ins, int p1, byte[] data) {
+		if (data == null)
+			return new CommandAPDU(CLA, ins, p1, 0x00, 256);
+		return new CommandAPDU(CLA, ins, p1, 0x00, data, 256);
+	}
+
+	/**
+	 * Sends a command to the selected applet and returns the response with its status word
+	 */
+	public ResponseAPDU transmit(CommandAPDU command) {
+		return card.transmitCommand(command);
+	}
+
+	/**
+	 * Sends a command to the selected applet and returns the response data
+	 * @exception IllegalStateException - when the applet does not return 9000
+	 */
+	public byte[] send(CommandAPDU command) {
+		ResponseAPDU response = card.transmitCommand(command);
+		if (response.getSW() != SW_NO_ERROR)
+			throw new IllegalStateException(String.format("INS %02X returned %04X", command.getINS(), response.getSW()));
+		return response.getData();
+	}
+
+	/**
+	 * Runs the association of the default host slot on a curve: INS 11, 12, 10, 18, 19 and 17 with the 3DES suite.
+	 * The host keeps the ECDH secret key, seedX and seedY of the association
+	 * @param curve - CURVE_P192 or CURVE_P256
+	 */
+	public void associate(int curve) {
+		exchangeKeys(curve);
+		send(confirmCommand());
+		seedX = new byte[KEY_LENGTH];
+		random.nextBytes(seedX);
+		send(command(INS_SAVE_SHARE_SEED_X, KEY_LENGTH, encrypt(sessionKey, seedX)));
+		seedY = decrypt(sessionKey, send(command(INS_GET_SHARE_SEED_Y, 0x00, null)));
+		send(command(INS_SAVE_SECRET_KEYS, 0x00, null));
+	}
+
+	/**
+	 * INS 11 and INS 12 of an association, the host derives the ECDH secret key as the card does
+	 * @param curve - CURVE_P192 or CURVE_P256
+	 */
+	public void exchangeKeys(int curve) {
+		byte[] cardPublicKey = send(publicKeyCommand(curve));
+		send(generateSecretCommand(curve));
+		ECPoint shared = curves[curve].getCurve().decodePoint(cardPublicKey)
+				.multiply(hostPrivateKeys[curve]).normalize();
+		/** ALG_EC_SVDP_DH returns SHA-1 of the X coordinate, the card repeats its first bytes up to the 3DES key length */
+		byte[] secret = sha1(shared.getAffineXCoord().getEncoded());
+		sessionKey = new byte[KEY_LENGTH];
+		System.arraycopy(secret, 0, sessionKey, 0, secret.length);
+		System.arraycopy(secret, 0, sessionKey, secret.length, KEY_LENGTH - secret.length);
+	}
+
+	/**
+	 * INS 11 - returns the uncompressed ORWL public key of the curve and selects the curve for the association
+	 * @param curve - CURVE_P192 or CURVE_P256
+	 */
+	public CommandAPDU publicKeyCommand(int curve) {
+		return command(INS_GET_PUBLIC_KEY, curve, null);
+	}
+
+	/**
+	 * INS 12 - the uncompressed host public key of the curve, 3DES suite
+	 * @param curve - CURVE_P192 or CURVE_P256, as selected by INS 11
+	 */
+	public CommandAPDU generateSecretCommand(int curve) {
+		return command(INS_GENERATE_SECRET_KEY, 0x00, hostPublicKeys[curve]);
+	}
+
+	/**
+	 * INS 26 - regenerates the keypairs retired by the associations
+	 */
+	public CommandAPDU prepareKeyPairCommand() {
+		return command(INS_PREPARE_KEYPAIR, 0x00, null);
+	}
+
+	/**
+	 * INS 10 - the sample data encrypted with the ECDH secret key
+	 */
+	public CommandAPDU confirmCommand() {
+		return command(INS_CONFIRM_SECRET_KEY, 0x00, encrypt(sessionKey, sampleData));
+	}
+
+	/**
+	 * INS 1D P1 01 - frees the default host slot with the proof of its ECDH secret key
+	 */
+	public CommandAPDU freeSlotCommand() {
+		byte[] proof = encrypt(sessionKey, new byte[] {DEFAULT_HOST_ID, 0, 0, 0, 0, 0, 0, 0});
+		byte[] data = new byte[proof.length + 1];
+		data[0] = DEFAULT_HOST_ID;
+		System.arraycopy(proof, 0, data, 1, proof.length);
+		return command(INS_HOST_SLOTS, P1_FREE_HOST_SLOT, data);
+	}
+
+	/**
+	 * INS 15 - a new random seed encrypted with seedX and then with the ECDH secret key
+	 * @param mode - P1_SEED_ONCE or P1_SEED_RATCHET
+	 */
+	public CommandAPDU seedSaveCommand(int mode) {
+		seed = new byte[SEED_LENGTH];
+		random.nextBytes(seed);
+		return command(INS_SAVE_SEED_KEY, mode, encrypt(sessionKey, encrypt(seedX, seed)));
+	}
+
+	/**
+	 * INS 16 - returns the authentication response of the saved seed
+	 */
+	public CommandAPDU seedAuthenticateCommand() {
+		return command(INS_AUTH_SEED_KEY, 0x00, null);
+	}
+
+	/**
+	 * INS 40 - sent to ORWL_BLESeed, returns the saved seed
+	 */
+	public CommandAPDU bleSeedCommand() {
+		return command(INS_GET_BLE_SEED, 0x00, null);
+	}
+
+	/**
+	 * Returns the seed of the last INS 15
+	 */
+	public byte[] seed() {
+		return seed.clone();
+	}
+
+	/**
+	 * Returns the INS 16 response expected for a seed: SHA-1 of its challenge, padded by repeating its first bytes,
+	 * encrypted with seedY and then with the ECDH secret key
+	 */
+	public byte[] expectedSeedAuthentication(byte[] seed) {
+		byte[] digest = sha1(Arrays.copyOf(seed, CHALLENGE_LENGTH));
+		byte[] padded = new byte[(digest.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH * BLOCK_LENGTH];
+		System.arraycopy(digest, 0, padded, 0, digest.length);
+		System.arraycopy(digest, 0, padded, digest.length, padded.length - digest.length);
+		return encrypt(sessionKey, encrypt(seedY, padded));
+	}
+
+	private static byte[] sha1(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] encrypt(byte[] key, byte[] data) {
+		return des3(Cipher.ENCRYPT_MODE, key, data);
+	}
+
+	private static byte[] decrypt(byte[] key, byte[] data) {
+		return des3(Cipher.DECRYPT_MODE, key, data);
+	}
+
+	/**
+	 * 3DES CBC with the fixed IV of the applet, the data is a multiple of the block length
+	 */
+	private static byte[] des3(int mode, byte[] key, byte[] data) {
+		try {
+			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+			cipher.init(mode, new SecretKeySpec(key, "DESede"), new IvParameterSpec(desIVVal));
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
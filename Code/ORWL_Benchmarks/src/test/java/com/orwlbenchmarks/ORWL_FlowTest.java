@@ -0,0 +1,42 @@
+/**
+ * Checks the flows measured by ORWL_FlowBenchmarks on the simulated card
+ */
+package com.orwlbenchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ORWL_FlowTest {
+
+	private ORWL_Host host;
+
+	@Before
+	public void setUp() {
+		host = new ORWL_Host();
+	}
+
+	@Test
+	public void seedIsAuthenticatedAndRetrievedAfterAssociation() {
+		host.associate(ORWL_Host.CURVE_P192);
+		host.send(host.seedSaveCommand(ORWL_Host.P1_SEED_ONCE));
+		byte[] seed = host.seed();
+		assertArrayEquals(host.expectedSeedAuthentication(seed), host.send(host.seedAuthenticateCommand()));
+
+		host.selectBleSeed();
+		assertArrayEquals(seed, host.send(host.bleSeedCommand()));
+		/** The seed is retrieved only once */
+		assertEquals(0x6985, host.transmit(host.bleSeedCommand()).getSW());
+	}
+
+	@Test
+	public void freedSlotIsAssociatedAgain() {
+		for (int curve = ORWL_Host.CURVE_P192; curve <= ORWL_Host.CURVE_P256; curve++) {
+			host.associate(curve);
+			host.send(host.freeSlotCommand());
+		}
+		host.associate(ORWL_Host.CURVE_P192);
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Checks that repeated associations do not consume card memory: INS 11, 12, 10, 18, 19 and 17 run in cycles,
+ * INS 1D P1 01 frees the host slot between them, and INS CA P1 01 reports the same available memory afterwards.
+ * jCardSim reports fixed available memory, the test also counts the transient arrays the applets allocate during the cycles
+ */
+package com.orwlbenchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import javacard.framework.JCSystem;
+
+import org.junit.Test;
+
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.base.TransientMemory;
+
+public class ORWL_MemoryTest {
+
+	/** Enough cycles to rotate the keypair of both curves through private keys with a leading zero byte */
+	private static final int CYCLES = 300;
+
+	/** TLV 84 of INS CA P1 01 - available persistent, CLEAR_ON_RESET and CLEAR_ON_DESELECT memory */
+	private static final byte TAG_AVAILABLE_MEMORY = (byte) 0x84;
+
+	/**
+	 * Transient memory of the simulated card counting the transient arrays allocated by the applets,
+	 * the jCardSim cipher and key classes allocate their own transient buffers on every use and are not counted
+	 */
+	private static class CountingTransientMemory extends TransientMemory {
+		int arrays;
+
+		@Override
+		protected void storeArray(Object array, byte event) {
+			if (allocatedByApplet())
+				arrays++;
+			super.storeArray(array, event);
+		}
+
+		/**
+		 * Returns whether the caller of the JCSystem.makeTransient method is an applet class
+		 */
+		private static boolean allocatedByApplet() {
+			return StackWalker.getInstance().walk(frames -> frames
+					.dropWhile(frame -> !frame.getClassName().equals(JCSystem.class.getName()))
+					.dropWhile(frame -> frame.getClassName().equals(JCSystem.class.getName()))
+					.findFirst()
+					.map(frame -> frame.getClassName().startsWith("com.orwl"))
+					.orElse(false));
+		}
+	}
+
+	@Test
+	public void associationCyclesKeepAvailableMemory() {
+		CountingTransientMemory memory = new CountingTransientMemory();
+		ORWL_Host host = new ORWL_Host(new SimulatorRuntime(memory));
+		byte[] availableMemory = availableMemory(host);
+		int transientArrays = memory.arrays;
+		/** The applets allocate their transient arrays at installation, the count covers them */
+		assertTrue(transientArrays > 0);
+
+		for (int i = 0; i < CYCLES; i++) {
+			host.selectKeypair();
+			host.associate(i % 2 == 0 ? ORWL_Host.CURVE_P192 : ORWL_Host.CURVE_P256);
+			host.send(host.freeSlotCommand());
+		}
+
+		assertArrayEquals(availableMemory, availableMemory(host));
+		assertEquals(transientArrays, memory.arrays);
+	}
+
+	/**
+	 * Returns the value of TLV 84 of INS CA P1 01
+	 */
+	private static byte[] availableMemory(ORWL_Host host) {
+		byte[] response = host.send(ORWL_Host.command(ORWL_Host.INS_GET_COUNTERS, ORWL_Host.P1_EEPROM_WRITES, null));
+		for (int offset = 0; offset + 1 < response.length; offset += 2 + (response[offset + 1] & 0xFF)) {
+			if (response[offset] == TAG_AVAILABLE_MEMORY)
+				return Arrays.copyOfRange(response, offset + 2, offset + 2 + (response[offset + 1] & 0xFF));
+		}
+		fail("INS CA P1 01 returned no available memory");
+		return null;
+	}
+}
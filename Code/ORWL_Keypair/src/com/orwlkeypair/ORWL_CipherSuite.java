@@ -0,0 +1,235 @@
+/**
+ * Package AID: 0A 0B 0C 0D 0E 0A
+ * Cipher suite used by ORWL_Keypair for data encryption and decryption
+ * 1. 3DES-CBC with 3-key DES keys, supported by every ORWL device
+ * 2. AES-128-CBC, advertised by the ORWL device during association
+ * 3. Holds the ECDH secret key, seedX and seedY key objects of the suite
+ * 4. Binds the cipher contexts shared by the host slots to its keys, again only after another host slot used them
+ */
+package com.orwlkeypair;
+
+import javacard.security.AESKey;
+import javacard.security.DESKey;
+import javacard.security.Key;
+import javacard.security.KeyBuilder;
+import javacardx.crypto.Cipher;
+
+class ORWL_CipherSuite {
+
+	/** Cipher suites negotiated in P1 of the association commands */
+	final static byte SUITE_3DES = (byte) 0x00;
+	final static byte SUITE_AES_128 = (byte) 0x01;
+
+	/** 3DES common Initialization vector value */
+	private final static byte[] desIVVal = {0x0f,0x1e,0x2d,0x3c,0x4b,0x5a,0x69,0x78};
+
+	/** AES common Initialization vector value */
+	private final static byte[] aesIVVal = {0x0f,0x1e,0x2d,0x3c,0x4b,0x5a,0x69,0x78,
+		(byte) 0x87,(byte) 0x96,(byte) 0xa5,(byte) 0xb4,(byte) 0xc3,(byte) 0xd2,(byte) 0xe1,(byte) 0xf0};
+
+	/** Key and block lengths of the suite */
+	private static final short DES_KEY_LENGTH = 24;
+	private static final short DES_BLOCK_LENGTH = 8;
+	private static final short AES_KEY_LENGTH = 16;
+	private static final short AES_BLOCK_LENGTH = 16;
+
+	private byte suite;
+	private byte[] IVVal;
+	private short keyLength;
+	private short blockLength;
+
+	/** ECDH secret key, seedX and seedY key instances */
+	private Key sessionKey;
+	private Key seedXKey;
+	private Key seedYKey;
+
+	/** Cipher contexts of the suite algorithm, shared with the same suite of the other host slots */
+	private ORWL_CipherContexts contexts;
+
+	/**
+	 * Creates the key instances of a suite
+	 * @param suite - SUITE_3DES or SUITE_AES_128
+	 * @param contexts - cipher contexts of the suite algorithm
+	 */
+	ORWL_CipherSuite(byte suite, ORWL_CipherContexts contexts) {
+		this.suite = suite;
+		this.contexts = contexts;
+		if (suite == SUITE_AES_128) {
+			IVVal = aesIVVal;
+			keyLength = AES_KEY_LENGTH;
+			blockLength = AES_BLOCK_LENGTH;
+			sessionKey = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+			seedXKey = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+			seedYKey = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		}
+		else {
+			IVVal = desIVVal;
+			keyLength = DES_KEY_LENGTH;
+			blockLength = DES_BLOCK_LENGTH;
+			sessionKey = KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY, false);
+			seedXKey = KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY, false);
+			seedYKey = KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY, false);
+		}
+	}
+
+	/**
+	 * Returns the suite identifier
+	 */
+	byte getSuite() {
+		return suite;
+	}
+
+	/**
+	 * Returns the key length, which is also the length of seedX and seedY in this suite
+	 */
+	short getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Returns the length rounded up to the cipher block length
+	 * @param length - length of the plain data
+	 */
+	short paddedLength(short length) {
+		return (short) ((short) (length + blockLength - 1) / blockLength * blockLength);
+	}
+
+	/**
+	 * Sets the key material to a key instance of the suite
+	 */
+	private void setKey(Key key, byte[] keyData, short keyOffset) {
+		if (suite == SUITE_AES_128)
+			((AESKey) key).setKey(keyData, keyOffset);
+		else
+			((DESKey) key).setKey(keyData, keyOffset);
+	}
+
+	/**
+	 * Sets the ECDH secret key and binds the encrypt and decrypt contexts to it
+	 * @param secret - buffer holding at least key length bytes of ECDH secret
+	 * @param offset - offset of the ECDH secret
+	 */
+	void setSessionKey(byte[] secret, short offset) {
+		setKey(sessionKey, secret, offset);
+		initSessionCiphers();
+	}
+
+	/**
+	 * Load the seed keys once, the unlock commands reuse them without any key setup
+	 */
+	void setSeedKeys(byte[] seedX, short seedXOffset, byte[] seedY, short seedYOffset) {
+		setKey(seedXKey, seedX, seedXOffset);
+		setKey(seedYKey, seedY, seedYOffset);
+		initSeedCiphers();
+	}
+
+	/**
+	 * Clears the ECDH secret key and the seed keys, the contexts are bound again once new keys are set
+	 */
+	void clearKeys() {
+		sessionKey.clearKey();
+		seedXKey.clearKey();
+		seedYKey.clearKey();
+		if (contexts.isBound(ORWL_CipherContexts.GROUP_SESSION, this))
+			contexts.bind(ORWL_CipherContexts.GROUP_SESSION, null);
+		if (contexts.isBound(ORWL_CipherContexts.GROUP_SEED, this))
+			contexts.bind(ORWL_CipherContexts.GROUP_SEED, null);
+	}
+
+	/**
+	 * Reads the ECDH secret key, used once per association to derive the HMAC authentication key
+	 * @param keyData - buffer receiving the key
+	 * @param keyOffset - offset of the key
+	 * @return key length in bytes
+	 */
+	short getSessionKey(byte[] keyData, short keyOffset) {
+		if (suite == SUITE_AES_128)
+			return ((AESKey) sessionKey).getKey(keyData, keyOffset);
+		return ((DESKey) sessionKey).getKey(keyData, keyOffset);
+	}
+
+	/**
+	 * Checks for ECDH secret key initialization status
+	 */
+	boolean isSessionKeyInitialized() {
+		return sessionKey.isInitialized();
+	}
+
+	/**
+	 * Binds the shared encrypt and decrypt contexts to the ECDH secret key
+	 */
+	private void initSessionCiphers() {
+		contexts.sessionEncryptCipher.init(sessionKey, Cipher.MODE_ENCRYPT, IVVal, (short) 0, (short) IVVal.length);
+		contexts.sessionDecryptCipher.init(sessionKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
+		contexts.bind(ORWL_CipherContexts.GROUP_SESSION, this);
+	}
+
+	/**
+	 * Binds the shared seedX decrypt and seedY encrypt contexts to the seed keys
+	 */
+	private void initSeedCiphers() {
+		contexts.seedXDecryptCipher.init(seedXKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
+		contexts.seedYEncryptCipher.init(seedYKey, Cipher.MODE_ENCRYPT, IVVal, (short) 0, (short) IVVal.length);
+		contexts.bind(ORWL_CipherContexts.GROUP_SEED, this);
+	}
+
+	/**
+	 * Binds the shared ECDH secret key contexts unless they still hold the keys of this suite
+	 */
+	private void prepareSession() {
+		if (!contexts.isBound(ORWL_CipherContexts.GROUP_SESSION, this))
+			initSessionCiphers();
+	}
+
+	/**
+	 * Binds the shared seed contexts unless they still hold the keys of this suite
+	 */
+	private void prepareSeed() {
+		if (!contexts.isBound(ORWL_CipherContexts.GROUP_SEED, this))
+			initSeedCiphers();
+	}
+
+	/**
+	 * Binds the shared cipher contexts to the key objects already loaded, once per card session and after
+	 * another host slot used them, every further encryption and decryption is a single doFinal call
+	 */
+	void prepare() {
+		if (sessionKey.isInitialized())
+			prepareSession();
+		if (seedXKey.isInitialized() && seedYKey.isInitialized())
+			prepareSeed();
+	}
+
+	/**
+	 * Encrypt using the ECDH secret key context
+	 */
+	short sessionEncrypt(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		prepareSession();
+		return contexts.sessionEncryptCipher.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+	}
+
+	/**
+	 * Decrypt using the ECDH secret key context
+	 */
+	short sessionDecrypt(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		prepareSession();
+		return contexts.sessionDecryptCipher.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+	}
+
+	/**
+	 * Decrypt using the seedX context
+	 */
+	short seedXDecrypt(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		prepareSeed();
+		return contexts.seedXDecryptCipher.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+	}
+
+	/**
+	 * Encrypt using the seedY context
+	 */
+	short seedYEncrypt(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		prepareSeed();
+		return contexts.seedYEncryptCipher.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+	}
+
+}
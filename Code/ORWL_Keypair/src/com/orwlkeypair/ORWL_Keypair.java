@@ -6,15 +6,18 @@
  * 1. Stores the KeyFOB serial number during manufacturing mode
  * 2. Retrieval of KeyFOB details anytime
  * 3. Retrieve KeyFOB association status
- * 4. ECDH key pair generation and secret key generation
+ * 4. ECDH key pair generation on secp192r1 or P-256 and secret key generation
  * 5. Exchange and store the seedX and seedY values
  * 6. CVM pin verification
  * 7. Save the KeyFOB name
  * 8. Save all the encryption/decryption keys and complete the association process
  * 9. Decrypt and save the Ble seed token using ECDH secret key and seedX
  * 10. Authenticate the Ble seed challenge, create message digest and encrypt it using the seedY and ECDH key
- * 11. Implements 3DES Algorithm for data encryption and decryption
+ * 11. Implements 3DES or AES-128 Algorithm for data encryption and decryption, negotiated during association
  * 12. SHA-1 algorithm is used for message digest creation
+ * 13. Associations with up to 4 ORWL devices, each selected by its host identifier
+ * 14. Resumption ticket restoring the CVM pin verification after the ORWL device reconnects
+ * 15. Multiselectable, can be used on several logical channels
  */
 package com.orwlkeypair;
 
@@ -26,21 +29,23 @@ import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
 import javacard.framework.Util;
-import javacard.security.DESKey;
-import javacard.security.ECPrivateKey;
+import javacard.security.CryptoException;
+import javacard.security.ECKey;
 import javacard.security.ECPublicKey;
 import javacard.security.KeyAgreement;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
 import javacard.security.MessageDigest;
 import javacard.security.RandomData;
-import javacardx.crypto.Cipher;
 
-public class ORWL_Keypair extends Applet{
+public class ORWL_Keypair extends Applet implements MultiSelectable{
 
 	/**Supported Class byte by this applet*/
 	public final static byte CLA = (byte) 0x90;
+	/** Logical channel bits of the class byte*/
+	final static byte CLA_CHANNEL_MASK = (byte) 0x03;
 
 	/**Supported INS bytes by this applet*/
 	final static byte INS_GET_KEYFOB_SERIAL_NUM = (byte) 0x20;
@@ -54,110 +59,325 @@ public class ORWL_Keypair extends Applet{
 	final static byte INS_CONFIRM_SECRET_KEY = (byte) 0x10;
 	final static byte INS_VERIFY_CVM_PIN = (byte) 0x13;
 	final static byte INS_ASSOCIATE_STATUS = (byte) 0x14;
+	final static byte INS_GET_DEVICE_INFO = (byte) 0x23;
 
 	final static byte INS_SAVE_SEED_KEY = (byte) 0x15;
 	final static byte INS_AUTH_SEED_KEY = (byte) 0x16;
 	final static byte INS_SAVE_SECRET_KEYS = (byte) 0x17;
 	final static byte INS_SAVE_SHARE_SEED_X = (byte) 0x18;
 	final static byte INS_GET_SHARE_SEED_Y = (byte) 0x19;
+	final static byte INS_BOOTSTRAP_ASSOCIATION = (byte) 0x1B;
+	final static byte INS_SELECT_HOST = (byte) 0x1C;
+	final static byte INS_HOST_SLOTS = (byte) 0x1D;
+	final static byte INS_ISSUE_TICKET = (byte) 0x1E;
+	final static byte INS_RESUME_SESSION = (byte) 0x1F;
+	final static byte INS_FAST_UNLOCK = (byte) 0x24;
+	final static byte INS_RESUME_ASSOCIATION = (byte) 0x25;
+	final static byte INS_PREPARE_KEYPAIR = (byte) 0x26;
+	final static byte INS_GET_RESPONSE = (byte) 0xC0;
+	final static byte INS_GET_COUNTERS = (byte) 0xCA;
+
+	/** Length of the KeyFOB Name stored per host slot*/
+	private static final short LENGTH_KEYFOB_NAME_BYTES = ORWL_HostSlot.NAME_LENGTH;
+
+	/** Length of the KeyFOB Serial Number*/
+	private static final byte LENGTH_KEYFOB_SERIAL_NUM_BYTES = 4;
 
 	/**
-     * The nameAssociatedFlag can have following values: false => Ready for KeyFOB Name association(not yet associated)
-     * 													 true => KeyFOB name already associated
-     */
-	private boolean nameAssociatedFlag = false;
-
-	/**
-     * The serialAssociatedFlag can have following values: false => Ready for KeyFOB Serial Number association(not yet associated)
-     * 													   true => KeyFOB serial number already associated
-     */
-	private boolean serialAssociatedFlag = false;
-
-	/**
-     * The keyAssociationFlag can have following values: false => KeyFOB ready for association with any ORWL device(not yet associated)
-     * 													 true => already associated with an ORWL device
-     */
-	private boolean keyAssociationFlag = false;
-
-	private boolean seedXSaveFlag = false;
-
-	/** Used for storing KeyFOB Name*/
-	private byte[] keyfobName;
-	private static final short LENGTH_KEYFOB_NAME_BYTES = 19;
+	 * Persistent state block: status bitfield of the KeyFOB, serial number and the host slot records.
+	 * One object instead of a field per flag and an array per buffer, so every status check is a single mask test
+	 */
+	private byte[] persistentState;
+	private static final short OFFSET_DEVICE_STATUS = 0;
+	private static final short OFFSET_SERIAL_NUM = 1;
+	private static final short OFFSET_HOST_SLOTS = OFFSET_SERIAL_NUM + LENGTH_KEYFOB_SERIAL_NUM_BYTES;
 
-	/** Used for storing KeyFOB Serial Number*/
-	private byte[] keyfobSerialNum;
-	private static final byte LENGTH_KEYFOB_SERIAL_NUM_BYTES = 4;
+	/** Status bits of the KeyFOB: Serial Number already associated */
+	private static final byte STATUS_SERIAL_ASSOCIATED = (byte) 0x01;
 
-	/** SHA-1 generated encrypted message digest length*/
-	private static final short MESSAGE_DIGEST_LENGTH = 24;
+	/** Tags of the device information TLV response of INS 23 */
+	private static final byte TAG_ASSOCIATION_STATUS = (byte) 0x80;
+	private static final byte TAG_KEYFOB_SERIAL_NUM = (byte) 0x81;
+	private static final byte TAG_KEYFOB_NAME = (byte) 0x82;
 
-	/** Used for storing BLE seed*/
-	private byte[] bleSeed;
-	private static final short SEED_LENGTH = 40;
+	/** Length of the BLE seed stored per host slot*/
+	private static final short SEED_LENGTH = ORWL_HostSlot.SEED_LENGTH;
 	private static final short CHALLENGE_LENGTH = 32;
 
-	/** Used for storing shared seedX and seedY values*/
-	private byte[] sharedSeedX;
-	private byte[] sharedSeedY;
-	private static final short SHARED_SEED_LENGTH = 24;
-
 	/** CVM instance*/
 	CVM cvm;
 	private final static byte[] cvmData = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06};
 
-	/** Cipher instance*/
-	private Cipher cipherInstance;
+	/** CVM pin verification restored with a resumption ticket, dropped when the applet is deselected */
+	private boolean[] sessionResumed;
 
-	/** 3DES key instance*/
-	private DESKey desKey;
-
-	/** 3DES common Initialization vector value */
-	private byte[] IVVal = {0x0f,0x1e,0x2d,0x3c,0x4b,0x5a,0x69,0x78};
-
-	/** 192-bit r1 elliptic curve domain parameters */
-	private final static byte[] primeP = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
-		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe,
-		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+	/**
+	 * Challenge of INS 1F P1 00, answered once with HMAC-SHA-1 of the challenge keyed with the ticket, so that
+	 * only a host holding the ECDH key that decrypted the ticket resumes. The host slot entry is the index + 1, 0 when none is pending
+	 */
+	private byte[] resumeChallenge;
+	private short[] resumeChallengeSlot;
+	private static final short RESUME_CHALLENGE_LENGTH = 16;
 
-	private final static byte[] coefficientA = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
-		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe,
-		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfc};
+	/** P1 of INS 1F */
+	private static final byte P1_RESUME_CHALLENGE = (byte) 0x00;
+	private static final byte P1_RESUME_PROOF = (byte) 0x01;
 
-	private final static byte[] coefficientB = { 0x64, 0x21, 0x05, 0x19, (byte) 0xe5, (byte) 0x9c, (byte) 0x80, (byte) 0xe7, 0x0f, (byte) 0xa7,
-		(byte) 0xe9, (byte) 0xab, 0x72, 0x24, 0x30, 0x49, (byte) 0xfe, (byte) 0xb8, (byte) 0xde, (byte) 0xec, (byte) 0xc1, 0x46, (byte) 0xb9,
-		(byte) 0xb1 };
+	/**
+	 * Associations with ORWL devices, each slot holds its own seeds and key objects.
+	 * Slot 0 belongs to host identifier 00, used by ORWL devices that never select a host
+	 */
+	private ORWL_HostSlot[] hostSlots;
+	private static final short HOST_SLOT_COUNT = 4;
 
-	private final static byte[] fixedPointG = { 0x04, 0x18, (byte) 0x8d, (byte) 0xa8, 0x0e, (byte) 0xb0, 0x30, (byte) 0x90, (byte) 0xf6, 0x7c,
-		(byte) 0xbf, 0x20, (byte) 0xeb, 0x43, (byte) 0xa1, (byte) 0x88, 0x00, (byte) 0xf4, (byte) 0xff, 0x0a, (byte) 0xfd, (byte) 0x82, (byte) 0xff,
-		0x10, 0x12, 0x7, 0x19, 0x2b, (byte) 0x95, (byte) 0xff, (byte) 0xc8, (byte) 0xda, 0x78, 0x63, 0x10, 0x11, (byte) 0xed, 0x6b, 0x24, (byte) 0xcd,
-		(byte) 0xd5, 0x73, (byte) 0xf9, 0x77, (byte) 0xa1, 0x1e, 0x79, 0x48, 0x11 };
+	/** Index of the host slot selected with INS 1C, kept for the card session */
+	private short[] activeHost;
 
-	private final static byte[] orderR = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
-		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x99, (byte) 0xde, (byte) 0xf8, 0x36, 0x14, 0x6b, (byte) 0xc9, (byte) 0xb1,
-		(byte) 0xb4, (byte) 0xd2, 0x28, 0x31 };
+	/** P1 of INS 1D and the tag of the host slot TLV response */
+	private static final byte P1_LIST_HOST_SLOTS = (byte) 0x00;
+	private static final byte P1_FREE_HOST_SLOT = (byte) 0x01;
+	private static final byte TAG_HOST_SLOT = (byte) 0x80;
 
-	/** Elliptic curve public and private key instance */
-	ECPrivateKey privateKey;
-	ECPublicKey publicKey;
-	private static final short PUBLIC_KEY_LENGTH = 49;
+	/**
+	 * Elliptic curves selected in P1 of INS 11 for the association, secp192r1 is the curve of the earlier ORWL devices.
+	 * The domain parameters of every curve are kept in one table: field prime p, coefficients a and b, base point G and order r,
+	 * the field length f of the curve gives the layout f, f, f, 2f + 1, f
+	 */
+	final static byte CURVE_P192 = (byte) 0x00;
+	final static byte CURVE_P256 = (byte) 0x01;
+	private static final short CURVE_COUNT = 2;
+	private static final short LENGTH_EC_FP_256 = 256;
+	private final static short[] curveKeyLengths = { KeyBuilder.LENGTH_EC_FP_192, LENGTH_EC_FP_256 };
+	private final static short[] curveFieldLengths = { 24, 32 };
+	private final static short[] curveDomainOffsets = { 0, 145 };
+	private final static byte[] curveDomains = {
+		/* secp192r1 prime p */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		/* secp192r1 coefficient a */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfc,
+		/* secp192r1 coefficient b */
+		0x64, 0x21, 0x05, 0x19, (byte) 0xe5, (byte) 0x9c, (byte) 0x80, (byte) 0xe7,
+		0x0f, (byte) 0xa7, (byte) 0xe9, (byte) 0xab, 0x72, 0x24, 0x30, 0x49,
+		(byte) 0xfe, (byte) 0xb8, (byte) 0xde, (byte) 0xec, (byte) 0xc1, 0x46, (byte) 0xb9, (byte) 0xb1,
+		/* secp192r1 base point G, uncompressed */
+		0x04, 0x18, (byte) 0x8d, (byte) 0xa8, 0x0e, (byte) 0xb0, 0x30, (byte) 0x90,
+		(byte) 0xf6, 0x7c, (byte) 0xbf, 0x20, (byte) 0xeb, 0x43, (byte) 0xa1, (byte) 0x88,
+		0x00, (byte) 0xf4, (byte) 0xff, 0x0a, (byte) 0xfd, (byte) 0x82, (byte) 0xff, 0x10,
+		0x12, 0x07, 0x19, 0x2b, (byte) 0x95, (byte) 0xff, (byte) 0xc8, (byte) 0xda,
+		0x78, 0x63, 0x10, 0x11, (byte) 0xed, 0x6b, 0x24, (byte) 0xcd,
+		(byte) 0xd5, 0x73, (byte) 0xf9, 0x77, (byte) 0xa1, 0x1e, 0x79, 0x48,
+		0x11,
+		/* secp192r1 order r */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x99, (byte) 0xde, (byte) 0xf8, 0x36,
+		0x14, 0x6b, (byte) 0xc9, (byte) 0xb1, (byte) 0xb4, (byte) 0xd2, 0x28, 0x31,
+		/* P-256 (secp256r1) prime p */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00, 0x00, 0x00, 0x01,
+		0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+		0x00, 0x00, 0x00, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		/* P-256 (secp256r1) coefficient a */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00, 0x00, 0x00, 0x01,
+		0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+		0x00, 0x00, 0x00, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfc,
+		/* P-256 (secp256r1) coefficient b */
+		0x5a, (byte) 0xc6, 0x35, (byte) 0xd8, (byte) 0xaa, 0x3a, (byte) 0x93, (byte) 0xe7,
+		(byte) 0xb3, (byte) 0xeb, (byte) 0xbd, 0x55, 0x76, (byte) 0x98, (byte) 0x86, (byte) 0xbc,
+		0x65, 0x1d, 0x06, (byte) 0xb0, (byte) 0xcc, 0x53, (byte) 0xb0, (byte) 0xf6,
+		0x3b, (byte) 0xce, 0x3c, 0x3e, 0x27, (byte) 0xd2, 0x60, 0x4b,
+		/* P-256 (secp256r1) base point G, uncompressed */
+		0x04, 0x6b, 0x17, (byte) 0xd1, (byte) 0xf2, (byte) 0xe1, 0x2c, 0x42,
+		0x47, (byte) 0xf8, (byte) 0xbc, (byte) 0xe6, (byte) 0xe5, 0x63, (byte) 0xa4, 0x40,
+		(byte) 0xf2, 0x77, 0x03, 0x7d, (byte) 0x81, 0x2d, (byte) 0xeb, 0x33,
+		(byte) 0xa0, (byte) 0xf4, (byte) 0xa1, 0x39, 0x45, (byte) 0xd8, (byte) 0x98, (byte) 0xc2,
+		(byte) 0x96, 0x4f, (byte) 0xe3, 0x42, (byte) 0xe2, (byte) 0xfe, 0x1a, 0x7f,
+		(byte) 0x9b, (byte) 0x8e, (byte) 0xe7, (byte) 0xeb, 0x4a, 0x7c, 0x0f, (byte) 0x9e,
+		0x16, 0x2b, (byte) 0xce, 0x33, 0x57, 0x6b, 0x31, 0x5e,
+		(byte) 0xce, (byte) 0xcb, (byte) 0xb6, 0x40, 0x68, 0x37, (byte) 0xbf, 0x51,
+		(byte) 0xf5,
+		/* P-256 (secp256r1) order r */
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00, 0x00, 0x00, 0x00,
+		(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+		(byte) 0xbc, (byte) 0xe6, (byte) 0xfa, (byte) 0xad, (byte) 0xa7, 0x17, (byte) 0x9e, (byte) 0x84,
+		(byte) 0xf3, (byte) 0xb9, (byte) 0xca, (byte) 0xc2, (byte) 0xfc, 0x63, 0x25, 0x51
+	};
 
-	/** ECDH instance */
+	/**
+	 * Current and next elliptic curve keypair of every curve, keypair 2 * curve + 0 or 1. The current keypair serves the association
+	 * in progress, the next one is generated ahead so that every association uses a fresh keypair without waiting on key generation.
+	 * The P-256 keypairs are null when the platform does not support the curve
+	 */
+	private KeyPair[] keyPairs;
+	private short[] currentKeyPair;
+	private boolean[] nextKeyPairReady;
+	/** Length of the uncompressed public point on P-256, the cache of the public points has this stride */
+	private static final short PUBLIC_KEY_LENGTH = 65;
+
+	/** P1 flag of INS 11, 12 and 1B announcing SEC1 compressed public keys, other P1 bits keep their meaning */
+	private static final byte P1_COMPRESSED_POINT = (byte) 0x80;
+	/** P1 bits of INS 11 selecting the elliptic curve of the association */
+	private static final byte P1_CURVE_MASK = (byte) 0x01;
+
+	/** P1 flag of INS 12 and 1B selecting the HMAC-SHA-1 authentication response of INS 16 for the association */
+	private static final byte P1_HMAC_AUTH = (byte) 0x40;
+
+	/** P1 flag of INS 1B deriving seedX, seedY and the ECDH secret key from the ECDH secret and a nonce of each side */
+	private static final byte P1_KDF_KEYS = (byte) 0x20;
+	private static final short KDF_NONCE_LENGTH = 16;
+	/** Labels of the SHA-1 blocks expanding the derivation key, 80 bytes cover three 24 byte keys */
+	private final static byte[] kdfLabels = {0x01, 0x02, 0x03, 0x04};
+	private static final short HMAC_BLOCK_LENGTH = 64;
+	private static final byte HMAC_IPAD = (byte) 0x36;
+	private static final byte HMAC_OPAD = (byte) 0x5C;
+
+	/** P1 of INS 15, a ratchet seed is replaced by the next one derived on the card each time it is authenticated with INS 16 */
+	private static final byte P1_SEED_ONCE = (byte) 0x00;
+	private static final byte P1_SEED_RATCHET = (byte) 0x01;
+	/** Labels of the two SHA-1 blocks forming the next 40 byte ratchet seed */
+	private final static byte[] ratchetLabels = {0x01, 0x02};
+
+	/** Length range of the ORWL nonce of INS 24, it is staged in the scratch buffer */
+	private static final short UNLOCK_NONCE_MIN_LENGTH = 16;
+	private static final short UNLOCK_NONCE_MAX_LENGTH = CHALLENGE_LENGTH;
+
+	/** Encoded public point W of every keypair, cached when the keypair is generated */
+	private byte[] publicPoints;
+	private short[] publicPointLength;
+
+	/** SHA-1 digest of the public point of every keypair, its first bytes are the fingerprint sent on SELECT */
+	private byte[] publicPointDigests;
+	private static final short PUBLIC_KEY_FINGERPRINT_LENGTH = 8;
+
+	/** FCI template returned on SELECT and the tags of its proprietary data */
+	private static final byte PROTOCOL_VERSION = (byte) 0x01;
+	private static final byte TAG_FCI_TEMPLATE = (byte) 0x6F;
+	private static final byte TAG_DF_NAME = (byte) 0x84;
+	private static final byte TAG_FCI_PROPRIETARY = (byte) 0xA5;
+	private static final byte TAG_PROTOCOL_VERSION = (byte) 0x80;
+	private static final byte TAG_CIPHER_SUITES = (byte) 0x81;
+	private static final byte TAG_STATUS_BITS = (byte) 0x82;
+	private static final byte TAG_FREE_HOST_SLOTS = (byte) 0x83;
+	private static final byte TAG_PUBLIC_KEY_FINGERPRINT = (byte) 0x84;
+	private static final byte TAG_CURVES = (byte) 0x85;
+
+	/** ECDH instance, created once at install and reused for every association */
 	KeyAgreement ecdhInstance;
 
-	/** 3DES shared secret key */
-	private byte[] sharedSecretKey;
+	/** Length of the ECDH shared secret padded for the cipher suite keys */
 	private static final short SHARED_SECRET_KEY_LENGTH = 24;
 
 	/** Sample data used for confirming the ECDH secret key generated on both the sides */
 	private final static byte[] sampleData = {0x4f, 0x52, 0x57, 0x4c, 0x4b, 0x45, 0x59, 0x46};
 
+	/** Sample data of the KeyFOB confirmation, distinct from the ORWL sample data so the confirmation cannot be reflected */
+	private final static byte[] cardSampleData = {0x4b, 0x45, 0x59, 0x46, 0x4f, 0x52, 0x57, 0x4c};
+
+	/** Tags of the association bootstrap C-APDU and R-APDU TLV payload */
+	private static final byte TAG_HOST_PUBLIC_KEY = (byte) 0x81;
+	private static final byte TAG_CONFIRMATION = (byte) 0x82;
+	private static final byte TAG_SEED_X = (byte) 0x83;
+	private static final byte TAG_CARD_CONFIRMATION = (byte) 0x84;
+	private static final byte TAG_SEED_Y = (byte) 0x85;
+	private static final byte TAG_HOST_NONCE = (byte) 0x87;
+	private static final byte TAG_CARD_NONCE = (byte) 0x88;
+
+	/** Tags of the association progress TLV response */
+	private static final byte TAG_ASSOCIATION_STEP = (byte) 0x80;
+	private static final byte TAG_ASSOCIATION_P1 = (byte) 0x81;
+	private static final byte TAG_ORWL_PUBLIC_KEY = (byte) 0x82;
+	private static final byte TAG_ASSOCIATION_CURVE = (byte) 0x83;
+	private static final byte TAG_CVM_PIN = (byte) 0x86;
+
 	/** Random data generator instance */
 	RandomData randomData;
 
+	/** Secure random data generator for the key material, seedY and the KeyFOB nonce of the key derivation */
+	RandomData secureRandom;
+
 	/** SHA-1 generated message digest instance */
 	MessageDigest digestinstance;
 
+	/** Transient scratch buffer pool shared by the command handlers, allocated once at install.
+	 * Sized for the largest payload handled through it, the key derivation of INS 1B: derivation key,
+	 * 80 bytes of derived keys and the KeyFOB nonce (the 65 byte EC point and 40 byte seed fit as well) */
+	private byte[] scratchBuffer;
+	private static final short KDF_OUTPUT_OFFSET = MessageDigest.LENGTH_SHA;
+	private static final short KDF_CARD_NONCE_OFFSET = KDF_OUTPUT_OFFSET + 4 * MessageDigest.LENGTH_SHA;
+	private static final short SCRATCH_BUFFER_LENGTH = KDF_CARD_NONCE_OFFSET + KDF_NONCE_LENGTH;
+
+	/**
+	 * Transient buffer assembling chained command segments at OFFSET_CDATA behind the header of the last segment,
+	 * so that handlers address it like the APDU buffer, or holding the remainder of a long response
+	 */
+	private byte[] chainBuffer;
+	private static final short MAX_CHAINED_DATA = 256;
+	private static final short LENGTH_CHAIN_BUFFER = ISO7816.OFFSET_CDATA + MAX_CHAINED_DATA;
+	private static final short MAX_RESPONSE_CHUNK = 256;
+
+	/**
+	 * P2 value marking a command segment that is followed by further segments of the same INS.
+	 * The applet CLA 0x90 already carries the ISO chaining bit 0x10, so chaining is signalled through P2
+	 */
+	private static final byte P2_MORE_SEGMENTS = (byte) 0x80;
+
+	/** INS bytes for which performance counters are kept, in counter order */
+	private final static byte[] countedIns = { INS_GET_KEYFOB_SERIAL_NUM, INS_GET_KEYFOB_NAME, INS_STORE_KEYFOB_SERIAL_NUM,
+		INS_STORE_KEYFOB_NAME, INS_GET_PUBLIC_KEY, INS_GENERATE_SECRET_KEY, INS_CONFIRM_SECRET_KEY, INS_VERIFY_CVM_PIN,
+		INS_ASSOCIATE_STATUS, INS_GET_DEVICE_INFO, INS_SAVE_SEED_KEY, INS_AUTH_SEED_KEY, INS_SAVE_SECRET_KEYS, INS_SAVE_SHARE_SEED_X,
+		INS_GET_SHARE_SEED_Y, INS_BOOTSTRAP_ASSOCIATION, INS_SELECT_HOST,
+		INS_HOST_SLOTS, INS_ISSUE_TICKET, INS_RESUME_SESSION, INS_FAST_UNLOCK, INS_RESUME_ASSOCIATION,
+		INS_PREPARE_KEYPAIR, INS_GET_COUNTERS };
+
+	/**
+	 * Persistent performance counters: associations started and committed, then invocations and
+	 * error status words of every counted INS. The counters saturate at FF FF
+	 */
+	private byte[] perfCounters;
+	private static final short COUNTER_ASSOCIATIONS_STARTED = 0;
+	private static final short COUNTER_ASSOCIATIONS_COMMITTED = 2;
+	private static final short COUNTER_INS_BASE = 4;
+	private static final short COUNTER_INS_SIZE = 4;
+
+	/** Transient staging of a counter value, copied non-atomically to the persistent counters */
+	private byte[] counterValue;
+
+	/** Tags of the performance counter TLV response */
+	private static final byte TAG_ASSOCIATION_COUNTERS = (byte) 0x80;
+	private static final byte TAG_INS_COUNTERS = (byte) 0x81;
+
+	/**
+	 * EEPROM write accounting: persistent updates and the largest commit buffer usage of every counted INS.
+	 * Kept in RAM for the card session so that measuring adds no EEPROM write, the first entry is the offset of the running INS
+	 */
+	private short[] eepromStats;
+	private static final short EEPROM_STATS_CURRENT = 0;
+	private static final short EEPROM_STATS_BASE = 1;
+	private static final short EEPROM_STATS_SIZE = 2;
+
+	/** P1 of INS CA and the tags of the EEPROM write TLV response */
+	private static final byte P1_PERFORMANCE_COUNTERS = (byte) 0x00;
+	private static final byte P1_EEPROM_WRITES = (byte) 0x01;
+	private static final byte TAG_COMMIT_CAPACITY = (byte) 0x82;
+	private static final byte TAG_INS_EEPROM_WRITES = (byte) 0x83;
+	private static final byte TAG_AVAILABLE_MEMORY = (byte) 0x84;
+
+	/**
+	 * Transient command chaining and response chaining state. The chain buffer belongs to the logical channel
+	 * that last used it, a chain or a response pending on that channel survives commands on the other channels
+	 */
+	private short[] chainState;
+	private static final short CHAIN_INS = 0;
+	private static final short CHAIN_LENGTH = 1;
+	private static final short CHAIN_PENDING = 2;
+	private static final short RESPONSE_OFFSET = 3;
+	private static final short RESPONSE_REMAINING = 4;
+	private static final short CHAIN_CHANNEL = 5;
+
 	/**The Constructor registers the applet instance with the JCRE.
 	 * The applet instance is created in the install() method.
 	 * @param bArray the array containing installation parameters.
@@ -167,52 +387,184 @@ public class ORWL_Keypair extends Applet{
 	 */
 	public ORWL_Keypair(byte[] bArray, short bOffset, byte bLength) {
 		/** Initialize the KeyFOB buffers*/
-		keyfobName = new byte[LENGTH_KEYFOB_NAME_BYTES];
-		keyfobSerialNum = new byte[LENGTH_KEYFOB_SERIAL_NUM_BYTES];
+		/** Allocate the persistent state block of the KeyFOB and its host slots*/
+		persistentState = new byte[(short) (OFFSET_HOST_SLOTS + (short) (HOST_SLOT_COUNT * ORWL_HostSlot.RECORD_LENGTH))];
+
+		/** Allocate the scratch buffer pool once, so no command handler allocates transient memory */
+		scratchBuffer = JCSystem.makeTransientByteArray(SCRATCH_BUFFER_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+		chainBuffer = JCSystem.makeTransientByteArray(LENGTH_CHAIN_BUFFER, JCSystem.CLEAR_ON_DESELECT);
+		chainState = JCSystem.makeTransientShortArray((short) 6, JCSystem.CLEAR_ON_DESELECT);
 
-		bleSeed = new byte[SEED_LENGTH];
-		sharedSeedX = new byte[SHARED_SEED_LENGTH];
-		sharedSeedY = new byte[SHARED_SEED_LENGTH];
+		/** Allocate the performance counters*/
+		perfCounters = new byte[(short) (COUNTER_INS_BASE + (short) (countedIns.length * COUNTER_INS_SIZE))];
+		counterValue = JCSystem.makeTransientByteArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+		eepromStats = JCSystem.makeTransientShortArray((short) (EEPROM_STATS_BASE + (short) (countedIns.length * EEPROM_STATS_SIZE)),
+				JCSystem.CLEAR_ON_RESET);
 
 		/** Create CVM interface handle and update the fixed CVM pin and its limit */
 		cvm = GPSystem.getCVM(GPSystem.CVM_GLOBAL_PIN);
 		cvm.setTryLimit((byte) 5);
 		cvm.update(cvmData, (short)0, (byte) cvmData.length, CVM.FORMAT_BCD);
 		cvm.resetState();
-
-		/** Create 3-DES cipher and key instance*/
-		cipherInstance = Cipher.getInstance(Cipher.ALG_DES_CBC_NOPAD, false);
-		desKey = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY, false);
-		sharedSecretKey = new byte[SHARED_SECRET_KEY_LENGTH];
+		sessionResumed = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+		resumeChallenge = JCSystem.makeTransientByteArray(RESUME_CHALLENGE_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+		resumeChallengeSlot = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+
+		/**
+		 * Create the host slots with their 3-DES and AES cipher suites, 3-DES is used until an ORWL device negotiates AES.
+		 * A single set of cipher contexts per algorithm serves every slot, the active slot binds it to its keys
+		 */
+		ORWL_CipherContexts des3Contexts = new ORWL_CipherContexts(ORWL_CipherSuite.SUITE_3DES);
+		ORWL_CipherContexts aesContexts = new ORWL_CipherContexts(ORWL_CipherSuite.SUITE_AES_128);
+		hostSlots = new ORWL_HostSlot[HOST_SLOT_COUNT];
+		for (short i = 0; i < HOST_SLOT_COUNT; i++)
+			hostSlots[i] = new ORWL_HostSlot(persistentState, (short) (OFFSET_HOST_SLOTS + (short) (i * ORWL_HostSlot.RECORD_LENGTH)),
+					des3Contexts, aesContexts);
+		activeHost = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
 
 		/** Create random data generator instance and message digest object*/
 		randomData = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
+		secureRandom = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
 		digestinstance = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
 
-		/** Generate Public Private Keypair used for ECDH secret key generation*/
-		KeyPair key = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_192);
+		/** Generate the current and the next Public Private Keypair of every curve used for ECDH secret key generation*/
+		keyPairs = new KeyPair[(short) (2 * CURVE_COUNT)];
+		currentKeyPair = new short[CURVE_COUNT];
+		nextKeyPairReady = new boolean[CURVE_COUNT];
+		publicPoints = new byte[(short) (2 * CURVE_COUNT * PUBLIC_KEY_LENGTH)];
+		publicPointLength = new short[(short) (2 * CURVE_COUNT)];
+		publicPointDigests = new byte[(short) (2 * CURVE_COUNT * MessageDigest.LENGTH_SHA)];
+		for (short i = 0; i < (short) (2 * CURVE_COUNT); i++) {
+			short curve = (short) (i / 2);
+			try {
+				keyPairs[i] = new KeyPair(KeyPair.ALG_EC_FP, curveKeyLengths[curve]);
+			} catch (CryptoException e) {
+				/** Only secp192r1 is required from the platform */
+				if (curve == CURVE_P192)
+					throw e;
+				continue;
+			}
+			/** Each key object of the keypair carries the domain parameters of the shared table*/
+			setDomainParameters((ECKey) keyPairs[i].getPrivate(), curve);
+			setDomainParameters((ECKey) keyPairs[i].getPublic(), curve);
+			generateKeyPair(i);
+			nextKeyPairReady[curve] = true;
+		}
+
+		/** Create ECDH key agreement instance*/
+		ecdhInstance = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH, false);
 
-		privateKey = (ECPrivateKey) key.getPrivate();
-		publicKey = (ECPublicKey) key.getPublic();
+		/** Applet registration with JCRE*/
+		register(bArray, (short) (bOffset + 1), bArray[bOffset]);
 
-		/** Set domain parameters to public and private keys*/
-		privateKey.setFieldFP(primeP, (short) 0, (short) primeP.length);
-		privateKey.setA(coefficientA, (short) 0, (short) coefficientA.length);
-		privateKey.setB(coefficientB, (short) 0, (short) coefficientB.length);
-		privateKey.setG(fixedPointG, (short) 0, (short) fixedPointG.length);
-		privateKey.setR(orderR, (short) 0, (short) orderR.length);
+	}
 
-		publicKey.setFieldFP(primeP, (short) 0, (short) primeP.length);
-		publicKey.setA(coefficientA, (short) 0, (short) coefficientA.length);
-		publicKey.setB(coefficientB, (short) 0, (short) coefficientB.length);
-		publicKey.setG(fixedPointG, (short) 0, (short) fixedPointG.length);
-		publicKey.setR(orderR, (short) 0, (short) orderR.length);
+	/**
+	 * Sets the elliptic curve domain parameters of a curve to a key from the shared domain table
+	 * @param key - public or private key of a keypair
+	 * @param curve - CURVE_ constant of the keypair
+	 */
+	private void setDomainParameters(ECKey key, short curve) {
+		short fieldLength = curveFieldLengths[curve];
+		short offset = curveDomainOffsets[curve];
+		key.setFieldFP(curveDomains, offset, fieldLength);
+		offset += fieldLength;
+		key.setA(curveDomains, offset, fieldLength);
+		offset += fieldLength;
+		key.setB(curveDomains, offset, fieldLength);
+		offset += fieldLength;
+		key.setG(curveDomains, offset, (short) (2 * fieldLength + 1));
+		offset += (short) (2 * fieldLength + 1);
+		key.setR(curveDomains, offset, fieldLength);
+	}
 
-		key.genKeyPair();
+	/**
+	 * Generates a keypair and caches its encoded public point and the digest of the point
+	 * @param index - 2 * curve + 0 or 1, index of the keypair
+	 */
+	private void generateKeyPair(short index) {
+		keyPairs[index].genKeyPair();
+		short pointOffset = (short) (index * PUBLIC_KEY_LENGTH);
+		publicPointLength[index] = ((ECPublicKey) keyPairs[index].getPublic()).getW(publicPoints, pointOffset);
+		digestinstance.doFinal(publicPoints, pointOffset, publicPointLength[index], publicPointDigests,
+				(short) (index * MessageDigest.LENGTH_SHA));
+	}
 
-		/** Applet registration with JCRE*/
-		register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+	/**
+	 * Returns the index of the current keypair of the curve selected for the association of the active host slot
+	 */
+	private short activeKeyPair() {
+		short curve = activeSlot().curve();
+		return (short) (2 * curve + currentKeyPair[curve]);
+	}
+
+	/**
+	 * Makes sure the next keypair of a curve is generated before an association commits. The keypair is generated
+	 * on select, on deselect or with INS 26, INS 17 and 1B only fall back to it when an association follows another
+	 * one in the same selection without INS 26 in between
+	 * @param curve - CURVE_ constant of the association
+	 */
+	private void prepareKeyPairRotation(short curve) {
+		if (!nextKeyPairReady[curve] && keyPairs[(short) (2 * curve)] != null) {
+			generateKeyPair((short) (2 * curve + 1 - currentKeyPair[curve]));
+			nextKeyPairReady[curve] = true;
+		}
+	}
+
+	/**
+	 * Retires the keypair of a committed association, called inside the commit transaction of the association.
+	 * The pregenerated keypair becomes the current one and the retired keypair is regenerated on the next select, deselect or INS 26
+	 * @param curve - CURVE_ constant of the association
+	 */
+	private void rotateKeyPair(short curve) {
+		currentKeyPair[curve] = (short) (1 - currentKeyPair[curve]);
+		nextKeyPairReady[curve] = false;
+	}
+
+	/**
+	 * Regenerates the keypairs retired by associations so that the next association does not wait on key generation
+	 */
+	private void prepareKeyPairs() {
+		for (short curve = 0; curve < CURVE_COUNT; curve++)
+			prepareKeyPairRotation(curve);
+	}
+
+	/**
+	 * Called by the JCRE when the applet is deselected, regenerates the retired keypairs,
+	 * a session that ends with a card reset or a field loss leaves them to the next select
+	 */
+	public void deselect() {
+		prepareKeyPairs();
+	}
+
+	/**
+	 * Called by the JCRE when the applet is selected on a logical channel, the retired keypairs are regenerated
+	 * unless the applet is already active on another one where a command may use them
+	 */
+	public boolean select(boolean appInstAlreadyActive) {
+		releaseChainBuffer();
+		if (!appInstAlreadyActive)
+			prepareKeyPairs();
+		return true;
+	}
+
+	/**
+	 * Called by the JCRE when the applet is deselected on a logical channel, the retired keypairs are regenerated
+	 * only once the last logical channel deselects it, never while a command on another channel may use them
+	 */
+	public void deselect(boolean appInstStillActive) {
+		if (!appInstStillActive)
+			deselect();
+	}
 
+	/**
+	 * Called by the JCRE when the applet is selected, a chain or a response left by an earlier selection
+	 * on the logical channel is dropped and the keypairs retired in an earlier session are regenerated
+	 */
+	public boolean select() {
+		releaseChainBuffer();
+		prepareKeyPairs();
+		return true;
 	}
 
 	/**
@@ -235,60 +587,133 @@ public class ORWL_Keypair extends Applet{
 	public void process(APDU apdu) throws ISOException {
 		byte buffer[] = apdu.getBuffer();
 
-		/** Check SELECT APDU command*/
-		if (selectingApplet())
+		/** Check SELECT APDU command, the FCI carries the state so that no status command is needed*/
+		if (selectingApplet()) {
+			sendFCI(apdu);
 			return;
-		else if(buffer[ISO7816.OFFSET_CLA] != CLA)
+		}
+		/** The logical channel bits are not part of the class*/
+		byte cla = (byte) (buffer[ISO7816.OFFSET_CLA] & ~CLA_CHANNEL_MASK);
+		boolean chainOwner = chainState[CHAIN_CHANNEL] == APDU.getCLAChannel();
+		/** GET RESPONSE continues a long response, it is also accepted with the ISO CLA*/
+		if(buffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE && (cla == CLA || cla == ISO7816.CLA_ISO7816)) {
+			getResponse(apdu, chainOwner);
+			return;
+		}
+		/** A new command drops the response pending on its own logical channel only*/
+		if (chainOwner)
+			chainState[RESPONSE_REMAINING] = 0;
+		chainState[CHAIN_PENDING] = 0;
+		if(cla != CLA)
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		else if (buffer[ISO7816.OFFSET_P2] == P2_MORE_SEGMENTS) {
+			appendCommandSegment(apdu);
+			return;
+		}
 		else if (buffer[ISO7816.OFFSET_P2] != 0)
 			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
-		/**Associate particular command to particular method*/
-		switch (buffer[ISO7816.OFFSET_INS]) {
-			case INS_STORE_KEYFOB_NAME:
-				storeKeyFobName(apdu);
-				break;
-			case INS_GET_KEYFOB_NAME:
-				getKeyFobName(apdu);
-				break;
-			case INS_STORE_KEYFOB_SERIAL_NUM:
-				storeKeyFobSerial(apdu);
-				break;
-			case INS_GET_KEYFOB_SERIAL_NUM:
-				getKeyFobSerial(apdu);
-				break;
-			case INS_VERIFY_CVM_PIN:
-				verifyCVM(apdu);
-				break;
-			case INS_ASSOCIATE_STATUS:
-				assosiateStatus(apdu);
-				break;
-			case INS_SAVE_SEED_KEY:
-				seedSave(apdu);
-				break;
-			case INS_AUTH_SEED_KEY:
-				seedAuthenticate(apdu);
-				break;
-			case INS_GET_PUBLIC_KEY:
-				getPublickey(apdu);
-				break;
-			case INS_GENERATE_SECRET_KEY:
-				generateSecretKey(apdu);
-				break;
-			case INS_CONFIRM_SECRET_KEY:
-				confirmSecretKey(apdu);
-				break;
-			case INS_SAVE_SECRET_KEYS:
-				saveSecretKeys(apdu);
-				break;
-			case INS_SAVE_SHARE_SEED_X:
-				saveShareSeedX(apdu);
-				break;
-			case INS_GET_SHARE_SEED_Y:
-				retrieveShareSeedY(apdu);
-				break;
-			default:
-				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		/** The last segment of a chained command must carry the same INS, the handler receives the assembled data*/
+		if (chainOwner && chainState[CHAIN_LENGTH] != 0) {
+			chainState[CHAIN_PENDING] = chainState[CHAIN_LENGTH];
+			chainState[CHAIN_LENGTH] = 0;
+			if (buffer[ISO7816.OFFSET_INS] != (byte) chainState[CHAIN_INS]) {
+				chainState[CHAIN_PENDING] = 0;
+				ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+			}
+			/** The handler addresses the chain buffer like the APDU buffer, it starts with the header of the last segment*/
+			Util.arrayCopyNonAtomic(buffer, (short) 0, chainBuffer, (short) 0, ISO7816.OFFSET_CDATA);
+		}
+
+		/**Count the invocation and any error status word returned by the counted INS*/
+		short counter = counterOffset(buffer[ISO7816.OFFSET_INS]);
+		eepromStats[EEPROM_STATS_CURRENT] = counter < 0 ? (short) -1 : (short) (EEPROM_STATS_BASE
+				+ (short) ((short) (counter - COUNTER_INS_BASE) / COUNTER_INS_SIZE * EEPROM_STATS_SIZE));
+		if (counter >= 0)
+			incrementCounter(counter);
+		try {
+			/**Associate particular command to particular method*/
+			switch (buffer[ISO7816.OFFSET_INS]) {
+				case INS_STORE_KEYFOB_NAME:
+					storeKeyFobName(apdu);
+					break;
+				case INS_GET_KEYFOB_NAME:
+					getKeyFobName(apdu);
+					break;
+				case INS_STORE_KEYFOB_SERIAL_NUM:
+					storeKeyFobSerial(apdu);
+					break;
+				case INS_GET_KEYFOB_SERIAL_NUM:
+					getKeyFobSerial(apdu);
+					break;
+				case INS_VERIFY_CVM_PIN:
+					verifyCVM(apdu);
+					break;
+				case INS_ASSOCIATE_STATUS:
+					assosiateStatus(apdu);
+					break;
+				case INS_GET_DEVICE_INFO:
+					getDeviceInfo(apdu);
+					break;
+				case INS_SAVE_SEED_KEY:
+					seedSave(apdu);
+					break;
+				case INS_AUTH_SEED_KEY:
+					seedAuthenticate(apdu);
+					break;
+				case INS_GET_PUBLIC_KEY:
+					getPublickey(apdu);
+					break;
+				case INS_GENERATE_SECRET_KEY:
+					generateSecretKey(apdu);
+					break;
+				case INS_CONFIRM_SECRET_KEY:
+					confirmSecretKey(apdu);
+					break;
+				case INS_SAVE_SECRET_KEYS:
+					saveSecretKeys(apdu);
+					break;
+				case INS_SAVE_SHARE_SEED_X:
+					saveShareSeedX(apdu);
+					break;
+				case INS_GET_SHARE_SEED_Y:
+					retrieveShareSeedY(apdu);
+					break;
+				case INS_BOOTSTRAP_ASSOCIATION:
+					bootstrapAssociation(apdu);
+					break;
+				case INS_SELECT_HOST:
+					selectHost(apdu);
+					break;
+				case INS_HOST_SLOTS:
+					manageHostSlots(apdu);
+					break;
+				case INS_ISSUE_TICKET:
+					issueTicket(apdu);
+					break;
+				case INS_RESUME_SESSION:
+					resumeSession(apdu);
+					break;
+				case INS_FAST_UNLOCK:
+					fastUnlock(apdu);
+					break;
+				case INS_RESUME_ASSOCIATION:
+					resumeAssociation(apdu);
+					break;
+				case INS_PREPARE_KEYPAIR:
+					prepareKeyPair(apdu);
+					break;
+				case INS_GET_COUNTERS:
+					getCounters(apdu);
+					break;
+				default:
+					ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+			}
+		} catch (RuntimeException e) {
+			if (counter >= 0 && !(e instanceof ISOException
+					&& (short) (((ISOException) e).getReason() & (short) 0xFF00) == ISO7816.SW_BYTES_REMAINING_00))
+				incrementCounter((short) (counter + 2));
+			throw e;
 		}
 	}
 
@@ -299,28 +724,30 @@ public class ORWL_Keypair extends Applet{
 	 * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void storeKeyFobName(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
 		byte keyLength = buffer[ISO7816.OFFSET_P1];
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for KeyFOB Name association, CVM pin verification, block and Paired key association status */
-		if (keyLength != (byte)LENGTH_KEYFOB_NAME_BYTES)
+		if (keyLength != (byte)LENGTH_KEYFOB_NAME_BYTES || bytesRecv != slot.cipherSuite.paddedLength(LENGTH_KEYFOB_NAME_BYTES))
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		else if(cvmPinBlockStatus() )
 			ISOException.throwIt((short) 0x9D61);
 		else if(!cvmPinVerificationStatus())
 			ISOException.throwIt((short) 0x9840);
-		else if(keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt((short) 0x6669);
-		else if( nameAssociatedFlag )
+		else if(slot.status(ORWL_HostSlot.STATUS_NAME_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			/** Initializes ECDH secret value and decrypt the data received */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
-
-			/** Store the KeyFOB name */
-			Util.arrayCopy(buffer, (short) 0, keyfobName, (short)0, LENGTH_KEYFOB_NAME_BYTES);
-			nameAssociatedFlag = true;
+			/** Decrypt the data received using the ECDH secret key context */
+			slot.cipherSuite.prepare();
+			slot.cipherSuite.sessionDecrypt(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
+
+			/** Store the KeyFOB name, the flag is written last so a torn copy leaves the name unassociated */
+			Util.arrayCopyNonAtomic(buffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_NAME), LENGTH_KEYFOB_NAME_BYTES);
+			slot.setStatus(ORWL_HostSlot.STATUS_NAME_ASSOCIATED);
+			recordWrites((short) 2);
 		}
 	}
 
@@ -332,21 +759,22 @@ public class ORWL_Keypair extends Applet{
 	 * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void getKeyFobName(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for Proper length and KeyFOB Name association */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(!keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0)
 			ISOException.throwIt((short) 0x6669);
-		else if( !nameAssociatedFlag )
+		else if(slot.status(ORWL_HostSlot.STATUS_NAME_ASSOCIATED) == 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			Util.arrayCopy(keyfobName, (short)0, buffer, (short)0, LENGTH_KEYFOB_NAME_BYTES);
+			Util.arrayCopy(slot.state, slot.offset(ORWL_HostSlot.OFFSET_NAME), buffer, (short)0, LENGTH_KEYFOB_NAME_BYTES);
 			/** Send R-APDU containing KeyFOB Name*/
-			apdu.setOutgoingAndSend((short) 0, (short) LENGTH_KEYFOB_NAME_BYTES);
+			sendResponse(apdu, buffer, (short) 0, LENGTH_KEYFOB_NAME_BYTES);
 		}
 	}
 
@@ -357,17 +785,21 @@ public class ORWL_Keypair extends Applet{
 	 * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void storeKeyFobSerial(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
 		/**Check for KeyFOB Serial Number association */
-		if( serialAssociatedFlag )
+		if( (persistentState[OFFSET_DEVICE_STATUS] & STATUS_SERIAL_ASSOCIATED) != 0 )
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			byte bytesRecv = (byte) apdu.setIncomingAndReceive();
-			/** Store the KeyFOB serial number */
-			Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, keyfobSerialNum, (short)0, (short)bytesRecv);
-			serialAssociatedFlag = true;
+			short bytesRecv = receiveCommandData(apdu);
+			/** The serial number is packed in front of the host slots, it must not run into them */
+			if (bytesRecv != LENGTH_KEYFOB_SERIAL_NUM_BYTES)
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			/** Store the KeyFOB serial number, the flag is written last so a torn copy leaves the serial number unassociated */
+			Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, persistentState, OFFSET_SERIAL_NUM, bytesRecv);
+			persistentState[OFFSET_DEVICE_STATUS] |= STATUS_SERIAL_ASSOCIATED;
+			recordWrites((short) 2);
 		}
 	}
 
@@ -379,19 +811,19 @@ public class ORWL_Keypair extends Applet{
 	 * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void getKeyFobSerial(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for Proper length and KeyFOB Serial Number association */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if( !serialAssociatedFlag )
+		else if( (persistentState[OFFSET_DEVICE_STATUS] & STATUS_SERIAL_ASSOCIATED) == 0 )
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			Util.arrayCopy(keyfobSerialNum, (short)0, buffer, (short)0, LENGTH_KEYFOB_SERIAL_NUM_BYTES);
+			Util.arrayCopy(persistentState, OFFSET_SERIAL_NUM, buffer, (short)0, LENGTH_KEYFOB_SERIAL_NUM_BYTES);
 			/** Send R-APDU containing KeyFOB Serial Number*/
-			apdu.setOutgoingAndSend((short) 0, (short) LENGTH_KEYFOB_SERIAL_NUM_BYTES );
+			sendResponse(apdu, buffer, (short) 0, LENGTH_KEYFOB_SERIAL_NUM_BYTES);
 		}
 	}
 
@@ -402,23 +834,112 @@ public class ORWL_Keypair extends Applet{
 	 * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void verifyCVM(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
 		byte pinLength = buffer[ISO7816.OFFSET_P1];
-		/**Check for Proper CVM pin length, CVM pin association status and 3DES initialization status */
-		if (pinLength != cvmData.length)
+		/**Check for Proper CVM pin length, its encrypted length, CVM pin association status and 3DES initialization status */
+		if (pinLength != cvmData.length || bytesRecv != slot.cipherSuite.paddedLength(pinLength))
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(!DESKeyStatus())
+		else if(!sessionKeyStatus())
 			ISOException.throwIt((short) 0x6669);
 		else {
-			/** Initializes ECDH secret value and decrypt the data received */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
+			/** Decrypt the data received using the ECDH secret key context */
+			slot.cipherSuite.prepare();
+			slot.cipherSuite.sessionDecrypt(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
 			/**CVM pin verification */
 			byte result = (byte)cvm.verify(buffer, (short)0, pinLength, CVM.FORMAT_BCD);
-			if(result != (byte)0x00)
+			if(result != (byte)0x00) {
+				sessionResumed[0] = false;
 				ISOException.throwIt((short) 0x9840);
+			}
+		}
+	}
+
+	/**
+	 * Sends the FCI template in response to SELECT, the ORWL device chooses its next command from it
+	 * @param apdu - the SELECT APDU
+	 * @return TLV 6F - FCI template consists of 84 - applet AID and A5 - proprietary data: 80 - protocol version,
+	 * 			81 - supported cipher suites, 82 - status bits of the KeyFOB and of the selected host slot,
+	 * 			83 - number of free host slots, 84 - fingerprint of the public key returned by INS 11
+	 */
+	private void sendFCI(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+		ORWL_HostSlot slot = activeSlot();
+		short offset = 2;
+		buffer[offset++] = TAG_DF_NAME;
+		buffer[offset] = JCSystem.getAID().getBytes(buffer, (short) (offset + 1));
+		offset += (short) (buffer[offset] + 1);
+		buffer[offset++] = TAG_FCI_PROPRIETARY;
+		short proprietaryOffset = offset++;
+		buffer[offset++] = TAG_PROTOCOL_VERSION;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = PROTOCOL_VERSION;
+		buffer[offset++] = TAG_CIPHER_SUITES;
+		buffer[offset++] = (byte) 0x02;
+		buffer[offset++] = ORWL_CipherSuite.SUITE_3DES;
+		buffer[offset++] = ORWL_CipherSuite.SUITE_AES_128;
+		buffer[offset++] = TAG_STATUS_BITS;
+		buffer[offset++] = (byte) 0x02;
+		buffer[offset++] = persistentState[OFFSET_DEVICE_STATUS];
+		buffer[offset++] = slot.status((byte) 0xFF);
+		/** Slot 0 is kept for host identifier 00, only the other slots can be taken with INS 1C */
+		byte freeSlots = 0;
+		for (short i = 1; i < HOST_SLOT_COUNT; i++) {
+			if (hostSlots[i].status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0)
+				freeSlots++;
+		}
+		buffer[offset++] = TAG_FREE_HOST_SLOTS;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = freeSlots;
+		buffer[offset++] = TAG_PUBLIC_KEY_FINGERPRINT;
+		buffer[offset++] = (byte) PUBLIC_KEY_FINGERPRINT_LENGTH;
+		offset = Util.arrayCopyNonAtomic(publicPointDigests, (short) (activeKeyPair() * MessageDigest.LENGTH_SHA), buffer, offset,
+				PUBLIC_KEY_FINGERPRINT_LENGTH);
+		buffer[offset++] = TAG_CURVES;
+		buffer[offset++] = (byte) (keyPairs[(short) (2 * CURVE_P256)] != null ? 0x02 : 0x01);
+		buffer[offset++] = CURVE_P192;
+		if (keyPairs[(short) (2 * CURVE_P256)] != null)
+			buffer[offset++] = CURVE_P256;
+		buffer[proprietaryOffset] = (byte) (offset - proprietaryOffset - 1);
+		buffer[0] = TAG_FCI_TEMPLATE;
+		buffer[1] = (byte) (offset - 2);
+		apdu.setOutgoingAndSend((short) 0, offset);
+	}
+
+	/**
+	 * INS 23 - Retrieve device information
+	 * Sends the association status of the selected host together with the Serial Number and KeyFOB Name
+	 * already associated, the ORWL device reads them with a single command
+	 * @param apdu - the incoming APDU
+	 * @return TLV 80 - association status 00 or 01, 81 - Serial Number, 82 - KeyFOB Name, absent values are omitted
+	 * @exception ISOException - with the response bytes per ISO 7816-4
+	 */
+	private void getDeviceInfo(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		/**Check for P1 Parameter value */
+		checkForP1Val(buffer);
+		short bytesRecv = receiveCommandData(apdu);
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		short offset = 0;
+		buffer[offset++] = TAG_ASSOCIATION_STATUS;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED);
+		if( (persistentState[OFFSET_DEVICE_STATUS] & STATUS_SERIAL_ASSOCIATED) != 0 ) {
+			buffer[offset++] = TAG_KEYFOB_SERIAL_NUM;
+			buffer[offset++] = LENGTH_KEYFOB_SERIAL_NUM_BYTES;
+			offset = Util.arrayCopyNonAtomic(persistentState, OFFSET_SERIAL_NUM, buffer, offset, LENGTH_KEYFOB_SERIAL_NUM_BYTES);
+		}
+		/** The KeyFOB Name is only sent to the associated ORWL device as with INS 22 */
+		if( slot.hasStatus((byte) (ORWL_HostSlot.STATUS_KEY_ASSOCIATED | ORWL_HostSlot.STATUS_NAME_ASSOCIATED)) ) {
+			buffer[offset++] = TAG_KEYFOB_NAME;
+			buffer[offset++] = (byte) LENGTH_KEYFOB_NAME_BYTES;
+			offset = Util.arrayCopyNonAtomic(slot.state, slot.offset(ORWL_HostSlot.OFFSET_NAME), buffer, offset, LENGTH_KEYFOB_NAME_BYTES);
 		}
+		/** Send R-APDU containing the device information*/
+		sendResponse(apdu, buffer, (short) 0, offset);
 	}
 
 	/**
@@ -429,61 +950,122 @@ public class ORWL_Keypair extends Applet{
      * @exception ISOException - with the response bytes per ISO 7816-4
 	 */
 	private void assosiateStatus(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for CVM pin verification, block and association status */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 	}
 
 	/**
 	 * INS 15 - Save ble seed
-	 * Decrypt and Save the ble seed using ECDH key and seedX as part of association process
-     * @param apdu - the incoming APDU consists of encrypted seed of 40 bytes
+	 * Decrypt and Save the ble seed using ECDH key and seedX as part of association process,
+	 * the response returned by INS 16 is computed here: the encrypted message digest, or the HMAC
+	 * of the ble challenge when the association selected it
+     * @param apdu - the incoming APDU consists of encrypted seed of 40 bytes, P1 - 00 single seed, 01 first seed of a ratchet
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void seedSave(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
-		short bytesRecv = apdu.setIncomingAndReceive();
-		/**Check for Seed length, CVM pin verification, block and Paired key association status */
-		if (bytesRecv != (byte)SEED_LENGTH)
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
+		byte mode = buffer[ISO7816.OFFSET_P1];
+		/**Check for Seed mode, length, CVM pin verification, block and Paired key association status */
+		if (mode != P1_SEED_ONCE && mode != P1_SEED_RATCHET)
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		else if (bytesRecv != slot.cipherSuite.paddedLength(SEED_LENGTH))
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		else if(cvmPinBlockStatus() )
 			ISOException.throwIt((short) 0x9D61);
 		else if(!cvmPinVerificationStatus())
 			ISOException.throwIt((short) 0x9840);
-		else if( !keyAssociationFlag )
+		else if( slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0 )
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			/** Initializes ECDH secret value and decrypt the data received */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
-			/**Set the 3des key to seedX*/
-			desKey.setKey(sharedSeedX, (short) 0);
-			/** Initializes seedX value and decrypt the data received */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, (short) 0, bytesRecv, bleSeed, (short) 0);
-			/**Reset the 3des key to ECDH key*/
-			desKey.setKey(sharedSecretKey, (short) 0);
+			/** Decrypt the data received using the ECDH secret key context */
+			slot.cipherSuite.prepare();
+			slot.cipherSuite.sessionDecrypt(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
+			/** Decrypt the data received using the seedX context */
+			slot.cipherSuite.seedXDecrypt(buffer, (short) 0, bytesRecv, scratchBuffer, (short) 0);
+
+			short digestLength = computeSeedAuthResponse(slot, buffer);
+
+			/** Lay out the seed followed by its authentication response as in the slot record */
+			Util.arrayCopyNonAtomic(buffer, (short) 0, buffer, SEED_LENGTH, digestLength);
+			Util.arrayCopyNonAtomic(scratchBuffer, (short) 0, buffer, (short) 0, SEED_LENGTH);
+
+			/** Store both with a single copy, the ready bit is reset before and set last so a torn copy is never sent */
+			slot.resetStatus((byte) (ORWL_HostSlot.STATUS_SEED_AUTH_READY | ORWL_HostSlot.STATUS_SEED_RATCHET));
+			Util.arrayCopyNonAtomic(buffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED), (short) (SEED_LENGTH + digestLength));
+			slot.state[slot.offset(ORWL_HostSlot.OFFSET_SEED_AUTH_LENGTH)] = (byte) digestLength;
+			slot.setStatus(mode == P1_SEED_RATCHET ? (byte) (ORWL_HostSlot.STATUS_SEED_AUTH_READY | ORWL_HostSlot.STATUS_SEED_RATCHET)
+					: ORWL_HostSlot.STATUS_SEED_AUTH_READY);
+			recordWrites((short) 4);
+		}
+	}
+
+	/**
+	 * Computes the response of INS 16 for the ble challenge in the scratch buffer, the encrypted message digest
+	 * or the HMAC when the association selected it
+	 * @param slot - host slot of the seed
+	 * @param buffer - buffer receiving the response at offset 0, HMAC_BLOCK_LENGTH + 20 bytes are used
+	 * @return length of the response
+	 */
+	private short computeSeedAuthResponse(ORWL_HostSlot slot, byte[] buffer) {
+		if (slot.status(ORWL_HostSlot.STATUS_HMAC_AUTH) != 0)
+			/** Single pass HMAC of BLE challenge with the key derived at association */
+			return computeHmac(slot, ORWL_HostSlot.OFFSET_AUTH_KEY, ORWL_HostSlot.AUTH_KEY_LENGTH, scratchBuffer, (short) 0, CHALLENGE_LENGTH, buffer);
+
+		/**Create message digest of BLE challenge*/
+		short outputLength = digestinstance.doFinal(scratchBuffer, (short)0, CHALLENGE_LENGTH, buffer, (short)0);
+		short digestLength = slot.cipherSuite.paddedLength(outputLength);
+		Util.arrayCopy(buffer, (short)0x00, buffer, outputLength, (short)(digestLength-outputLength));
+
+		/** Encrypt the data using the seedY context and then the ECDH secret key context */
+		slot.cipherSuite.prepare();
+		slot.cipherSuite.seedYEncrypt(buffer, (short) 0, digestLength, buffer, (short) 0);
+		slot.cipherSuite.sessionEncrypt(buffer, (short) 0, digestLength, buffer, (short) 0);
+		return digestLength;
+	}
+
+	/**
+	 * Replaces the ratchet seed with the next one, SHA-1(seedX || 01 || seed) || SHA-1(seedX || 02 || seed).
+	 * The ORWL device derives the same seed, so the next authentication needs no INS 15
+	 * @param slot - host slot of the seed
+	 * @param seed - buffer holding a copy of the current seed, the slot record is overwritten
+	 * @param seedOffset - offset of the copy
+	 */
+	private void ratchetSeed(ORWL_HostSlot slot, byte[] seed, short seedOffset) {
+		short seedXOffset = slot.offset(ORWL_HostSlot.OFFSET_SEED_X);
+		short nextOffset = slot.offset(ORWL_HostSlot.OFFSET_SEED);
+		/** SEED_LENGTH is two SHA-1 blocks */
+		for (short i = 0; i < (short) ratchetLabels.length; i++) {
+			digestinstance.update(slot.state, seedXOffset, slot.cipherSuite.getKeyLength());
+			digestinstance.update(ratchetLabels, i, (short) 1);
+			digestinstance.doFinal(seed, seedOffset, SEED_LENGTH, slot.state, nextOffset);
+			nextOffset += MessageDigest.LENGTH_SHA;
 		}
 	}
 
 	/**
 	 * INS 16 - Authenticate ble seed
-	 * Create message digest of the ble challenge and encrypt using seedY and ECDH key as part of association process
+	 * Returns the message digest of the ble challenge encrypted using seedY and ECDH key, computed when the seed was saved.
+	 * A ratchet seed is replaced by the next one once authenticated, whose response is computed on its first authentication
      * @param apdu - the incoming APDU
 	 * @return Message digest of ble challenge in encrypted form
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void seedAuthenticate(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for CVM pin association, verification, block and Paired key association status */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
@@ -491,36 +1073,67 @@ public class ORWL_Keypair extends Applet{
 			ISOException.throwIt((short) 0x9D61);
 		else if(!cvmPinVerificationStatus())
 			ISOException.throwIt((short) 0x9840);
-		else if(!keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0
+				|| slot.status((byte) (ORWL_HostSlot.STATUS_SEED_AUTH_READY | ORWL_HostSlot.STATUS_SEED_RATCHET)) == 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else{
-			/**Create message digest of BLE challenge*/
-			short outputLength = digestinstance.doFinal(bleSeed, (short)0, CHALLENGE_LENGTH, buffer, (short)0);
-			Util.arrayCopy(buffer, (short)0x00, buffer, (short)outputLength, (short)(MESSAGE_DIGEST_LENGTH-outputLength));
-
-			/**Set the 3des key to seedY*/
-			desKey.setKey(sharedSeedY, (short) 0);
-			/** Initializes seedY value and encrypt the data */
-			cipherInstance.init(desKey, Cipher.MODE_ENCRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, (short) 0, MESSAGE_DIGEST_LENGTH, buffer, (short) 0);
-			/**Reset the 3des key to ECDH key*/
-			desKey.setKey(sharedSecretKey, (short) 0);
-			/** Initializes ECDH secret value encrypt the data */
-			cipherInstance.init(desKey, Cipher.MODE_ENCRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, (short) 0, MESSAGE_DIGEST_LENGTH, buffer, (short) 0);
-
+			if (slot.status(ORWL_HostSlot.STATUS_SEED_AUTH_READY) == 0) {
+				/** Compute and store the response of the ratchet seed, the ready bit is set last */
+				Util.arrayCopyNonAtomic(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED), scratchBuffer, (short) 0, CHALLENGE_LENGTH);
+				short digestLength = computeSeedAuthResponse(slot, buffer);
+				Util.arrayCopyNonAtomic(buffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_AUTH), digestLength);
+				slot.state[slot.offset(ORWL_HostSlot.OFFSET_SEED_AUTH_LENGTH)] = (byte) digestLength;
+				slot.setStatus(ORWL_HostSlot.STATUS_SEED_AUTH_READY);
+				recordWrites((short) 3);
+			}
 			/** Send R-APDU containing encrypted message digest of ble challenge*/
-			apdu.setOutgoing();
-			apdu.setOutgoingLength((short) MESSAGE_DIGEST_LENGTH );
-			apdu.sendBytesLong(buffer,(short) 0, (short) MESSAGE_DIGEST_LENGTH );
+			sendResponse(apdu, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_AUTH), slot.seedAuthLength());
+			if (slot.status(ORWL_HostSlot.STATUS_SEED_RATCHET) != 0) {
+				/** The authenticated seed is used once, the next one is derived from a copy in the scratch buffer */
+				slot.resetStatus(ORWL_HostSlot.STATUS_SEED_AUTH_READY);
+				Util.arrayCopyNonAtomic(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED), scratchBuffer, (short) 0, SEED_LENGTH);
+				ratchetSeed(slot, scratchBuffer, (short) 0);
+				recordWrites((short) 2);
+			}
 		}
 	}
 
 	/**
-	 * Checks for the CVM pin verification status
+	 * INS 24 - Fast unlock
+	 * Returns HMAC-SHA-1 of the ORWL nonce keyed with the fast unlock key of the static ECDH secret agreed at association,
+	 * the ORWL device unlocks in a single command without the seed save, authentication and retrieval sequence
+     * @param apdu - the incoming APDU consists of the ORWL nonce of 16 to 32 bytes
+	 * @return HMAC of the nonce
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void fastUnlock(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		/**Check for P1 Parameter value */
+		checkForP1Val(buffer);
+		short bytesRecv = receiveCommandData(apdu);
+		/**Check for nonce length, CVM pin verification, block and Paired key association status */
+		if (bytesRecv < UNLOCK_NONCE_MIN_LENGTH || bytesRecv > UNLOCK_NONCE_MAX_LENGTH)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		else if(cvmPinBlockStatus() )
+			ISOException.throwIt((short) 0x9D61);
+		else if(!cvmPinVerificationStatus())
+			ISOException.throwIt((short) 0x9840);
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		else{
+			/** The APDU buffer holds the padded key and inner digest, the nonce is staged in the scratch buffer */
+			Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, scratchBuffer, (short) 0, bytesRecv);
+			short macLength = computeHmac(slot, ORWL_HostSlot.OFFSET_UNLOCK_KEY, ORWL_HostSlot.UNLOCK_KEY_LENGTH, scratchBuffer, (short) 0, bytesRecv, buffer);
+			sendResponse(apdu, buffer, (short) 0, macLength);
+		}
+	}
+
+	/**
+	 * Checks for the CVM pin verification status, verified in this card session or restored with a resumption ticket
 	 */
 	private boolean cvmPinVerificationStatus() {
-		return cvm.isVerified();
+		return cvm.isVerified() || sessionResumed[0];
 	}
 
 	/**
@@ -530,6 +1143,107 @@ public class ORWL_Keypair extends Applet{
 		return cvm.isBlocked();
 	}
 
+	/**
+	 * Returns the offset of the counters kept for an INS byte
+	 * @param ins - INS byte of the command
+	 * @return offset in the performance counters or -1 if the INS is not counted
+	 */
+	private short counterOffset(byte ins) {
+		for (short i = 0; i < (short) countedIns.length; i++) {
+			if (countedIns[i] == ins)
+				return (short) (COUNTER_INS_BASE + (short) (i * COUNTER_INS_SIZE));
+		}
+		return (short) -1;
+	}
+
+	/**
+	 * Increments a persistent counter with a non-atomic write so that no transaction cost is added
+	 * @param offset - offset of the counter in the performance counters
+	 */
+	private void incrementCounter(short offset) {
+		short value = Util.getShort(perfCounters, offset);
+		if (value != (short) 0xFFFF) {
+			Util.setShort(counterValue, (short) 0, (short) (value + 1));
+			Util.arrayCopyNonAtomic(counterValue, (short) 0, perfCounters, offset, (short) 2);
+			recordWrites((short) 1);
+		}
+	}
+
+	/**
+	 * Adds persistent updates to the EEPROM write count of the running INS, saturating at 7F FF
+	 * @param count - number of persistent updates outside a transaction, a transaction is counted by commitTransaction
+	 */
+	private void recordWrites(short count) {
+		short offset = eepromStats[EEPROM_STATS_CURRENT];
+		if (offset < 0)
+			return;
+		short value = (short) (eepromStats[offset] + count);
+		eepromStats[offset] = value < 0 ? (short) 0x7FFF : value;
+	}
+
+	/**
+	 * Commits the open transaction, counts it as a single update and records the commit buffer it used for the running INS
+	 */
+	private void commitTransaction() {
+		short used = (short) (JCSystem.getMaxCommitCapacity() - JCSystem.getUnusedCommitCapacity());
+		JCSystem.commitTransaction();
+		recordWrites((short) 1);
+		short offset = eepromStats[EEPROM_STATS_CURRENT];
+		if (offset >= 0 && used > eepromStats[(short) (offset + 1)])
+			eepromStats[(short) (offset + 1)] = used;
+	}
+
+	/**
+	 * INS CA - Get performance counters
+	 * P1 00 - Retrieve the associations started and committed and the invocations and error status words of every INS
+	 * P1 01 - Retrieve the commit capacity, the available memory and the EEPROM updates and largest commit buffer usage of every INS in this card session
+	 * @param apdu - the incoming APDU
+	 * @return P1 00 - TLV 80 - associations started and committed, 81 - INS, invocations and errors, repeated per INS
+	 * 		   P1 01 - TLV 82 - maximum commit capacity, 84 - available persistent, CLEAR_ON_RESET and CLEAR_ON_DESELECT memory, 83 - INS, EEPROM updates and commit buffer bytes, repeated per INS
+	 * @exception ISOException - with the response bytes per ISO 7816-4
+	 */
+	private void getCounters(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		short bytesRecv = receiveCommandData(apdu);
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		short offset = 0;
+		if (buffer[ISO7816.OFFSET_P1] == P1_EEPROM_WRITES) {
+			buffer[offset++] = TAG_COMMIT_CAPACITY;
+			buffer[offset++] = (byte) 0x02;
+			offset = Util.setShort(buffer, offset, JCSystem.getMaxCommitCapacity());
+			/** Persistent, CLEAR_ON_RESET and CLEAR_ON_DESELECT memory left, repeated flows must not reduce them */
+			buffer[offset++] = TAG_AVAILABLE_MEMORY;
+			buffer[offset++] = (byte) 0x06;
+			offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+			offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET));
+			offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT));
+			for (short i = 0; i < (short) countedIns.length; i++) {
+				short stats = (short) (EEPROM_STATS_BASE + (short) (i * EEPROM_STATS_SIZE));
+				buffer[offset++] = TAG_INS_EEPROM_WRITES;
+				buffer[offset++] = (byte) 0x05;
+				buffer[offset++] = countedIns[i];
+				offset = Util.setShort(buffer, offset, eepromStats[stats]);
+				offset = Util.setShort(buffer, offset, eepromStats[(short) (stats + 1)]);
+			}
+			sendResponse(apdu, buffer, (short) 0, offset);
+			return;
+		}
+		else if (buffer[ISO7816.OFFSET_P1] != P1_PERFORMANCE_COUNTERS)
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		buffer[offset++] = TAG_ASSOCIATION_COUNTERS;
+		buffer[offset++] = (byte) COUNTER_INS_BASE;
+		offset = Util.arrayCopyNonAtomic(perfCounters, (short) 0, buffer, offset, COUNTER_INS_BASE);
+		for (short i = 0; i < (short) countedIns.length; i++) {
+			buffer[offset++] = TAG_INS_COUNTERS;
+			buffer[offset++] = (byte) (COUNTER_INS_SIZE + 1);
+			buffer[offset++] = countedIns[i];
+			offset = Util.arrayCopyNonAtomic(perfCounters, (short) (COUNTER_INS_BASE + (short) (i * COUNTER_INS_SIZE)),
+					buffer, offset, COUNTER_INS_SIZE);
+		}
+		sendResponse(apdu, buffer, (short) 0, offset);
+	}
+
 	/**
 	 * Checks for the Parameter P1
 	 * @param buffer - APDU buffer
@@ -539,54 +1253,392 @@ public class ORWL_Keypair extends Applet{
 			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 	}
 
+	/**
+	 * Returns the buffer holding the command data at OFFSET_CDATA, the chain buffer when the APDU ends a command chain
+	 * and the APDU buffer otherwise. Handlers take it in place of the APDU buffer before receiving the command data
+	 * @param apdu - the incoming APDU
+	 * @return buffer holding the command header and data
+	 */
+	private byte[] commandBuffer(APDU apdu) {
+		return chainState[CHAIN_PENDING] != 0 ? chainBuffer : apdu.getBuffer();
+	}
+
+	/**
+	 * Receives the complete command data of the current APDU into the APDU buffer at OFFSET_CDATA.
+	 * When the APDU ends a command chain, its data is appended to the segments assembled in the chain buffer
+	 * @param apdu - the incoming APDU
+	 * @return length of the command data, the segments of the chain included
+	 * @exception ISOException - 67 00 if the assembled command does not fit the chain buffer
+	 */
+	private short receiveCommandData(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+		short length = 0;
+		short bytesRead = apdu.setIncomingAndReceive();
+		while (bytesRead > 0) {
+			length += bytesRead;
+			bytesRead = apdu.receiveBytes((short) (ISO7816.OFFSET_CDATA + length));
+		}
+		short chained = chainState[CHAIN_PENDING];
+		if (chained != 0) {
+			chainState[CHAIN_PENDING] = 0;
+			if ((short) (chained + length) > MAX_CHAINED_DATA)
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, chainBuffer, (short) (ISO7816.OFFSET_CDATA + chained), length);
+			length += chained;
+		}
+		return length;
+	}
+
+	/**
+	 * Appends a command segment sent with P2 80 to the transient assembly buffer
+	 * @param apdu - the incoming APDU consists of a segment of the command data
+	 * @exception ISOException - with the response bytes per ISO 7816-4
+	 */
+	private void appendCommandSegment(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+		claimChainBuffer();
+		short chained = chainState[CHAIN_LENGTH];
+		/** Every segment of a chain must carry the same INS */
+		if (chained != 0 && buffer[ISO7816.OFFSET_INS] != (byte) chainState[CHAIN_INS]) {
+			chainState[CHAIN_LENGTH] = 0;
+			ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+		}
+		short length = receiveCommandData(apdu);
+		if ((short) (chained + length) > MAX_CHAINED_DATA) {
+			chainState[CHAIN_LENGTH] = 0;
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, chainBuffer, (short) (ISO7816.OFFSET_CDATA + chained), length);
+		chainState[CHAIN_INS] = buffer[ISO7816.OFFSET_INS];
+		chainState[CHAIN_LENGTH] = (short) (chained + length);
+	}
+
+	/**
+	 * Sends the response data, a response longer than Le is split and the remainder
+	 * is announced with 61 xx for retrieval through GET RESPONSE
+	 * @param apdu - the outgoing APDU
+	 * @param data - buffer holding the response data
+	 * @param offset - offset of the response data
+	 * @param length - length of the response data
+	 */
+	private void sendResponse(APDU apdu, byte[] data, short offset, short length) {
+		short chunk = responseChunk(apdu.setOutgoing(), length);
+		if (chunk < length) {
+			short remaining = (short) (length - chunk);
+			if (remaining > LENGTH_CHAIN_BUFFER)
+				ISOException.throwIt(ISO7816.SW_UNKNOWN);
+			claimChainBuffer();
+			/** A response built in the chain buffer stays in place, it is not overwritten before the first part is sent */
+			if (data == chainBuffer)
+				chainState[RESPONSE_OFFSET] = (short) (offset + chunk);
+			else {
+				Util.arrayCopyNonAtomic(data, (short) (offset + chunk), chainBuffer, (short) 0, remaining);
+				chainState[RESPONSE_OFFSET] = 0;
+			}
+			chainState[RESPONSE_REMAINING] = remaining;
+		}
+		apdu.setOutgoingLength(chunk);
+		apdu.sendBytesLong(data, offset, chunk);
+		announceRemainingResponse();
+	}
+
+	/**
+	 * Binds the chain buffer to the logical channel of the command, a chain or a response
+	 * pending on another logical channel is dropped
+	 */
+	private void claimChainBuffer() {
+		byte channel = APDU.getCLAChannel();
+		if (chainState[CHAIN_CHANNEL] != channel) {
+			chainState[CHAIN_LENGTH] = 0;
+			chainState[RESPONSE_REMAINING] = 0;
+			chainState[CHAIN_CHANNEL] = channel;
+		}
+	}
+
+	/**
+	 * Drops the chain and the response pending on the logical channel of the command
+	 */
+	private void releaseChainBuffer() {
+		if (chainState[CHAIN_CHANNEL] == APDU.getCLAChannel()) {
+			chainState[CHAIN_LENGTH] = 0;
+			chainState[RESPONSE_REMAINING] = 0;
+		}
+	}
+
+	/**
+	 * INS C0 - Get Response
+	 * Sends the next part of a response announced with 61 xx on the same logical channel
+	 * @param apdu - the incoming APDU
+	 * @param chainOwner - true if the pending response belongs to the logical channel of the command
+	 * @return Next part of the pending response
+	 * @exception ISOException - with the response bytes per ISO 7816-4
+	 */
+	private void getResponse(APDU apdu, boolean chainOwner) {
+		short remaining = chainOwner ? chainState[RESPONSE_REMAINING] : (short) 0;
+		if (remaining == 0)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		short offset = chainState[RESPONSE_OFFSET];
+		short chunk = responseChunk(apdu.setOutgoing(), remaining);
+		chainState[RESPONSE_OFFSET] = (short) (offset + chunk);
+		chainState[RESPONSE_REMAINING] = (short) (remaining - chunk);
+		apdu.setOutgoingLength(chunk);
+		apdu.sendBytesLong(chainBuffer, offset, chunk);
+		announceRemainingResponse();
+	}
+
+	/**
+	 * Length of the next part of a response, at most Le bytes, an absent Le accepts a full short R-APDU
+	 * @param le - expected length of the response returned by setOutgoing
+	 * @param length - length of the response left to send
+	 * @return length of the part sent in this R-APDU
+	 */
+	private short responseChunk(short le, short length) {
+		if (le <= 0 || le > MAX_RESPONSE_CHUNK)
+			le = MAX_RESPONSE_CHUNK;
+		return length < le ? length : le;
+	}
+
+	/**
+	 * Completes the R-APDU with 61 xx while part of the response is still pending
+	 */
+	private void announceRemainingResponse() {
+		short remaining = chainState[RESPONSE_REMAINING];
+		if (remaining > (short) 0xFF)
+			ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
+		else if (remaining != 0)
+			ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | remaining));
+	}
+
 	/**
 	 * INS 11 - Get Public Key
 	 * Retrieve the public key of generated Public - Private Keypair
-     * @param apdu - the incoming APDU
+     * @param apdu - the incoming APDU, P1 - 00 uncompressed point, 80 compressed point, or'ed with 01 for P-256
 	 * @return Public key generated on KeyFOB
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void getPublickey(APDU apdu){
-		if(keyAssociationFlag)
+		byte[] buffer = apdu.getBuffer();
+		ORWL_HostSlot slot = activeSlot();
+		byte format = (byte) (buffer[ISO7816.OFFSET_P1] & P1_COMPRESSED_POINT);
+		byte curve = (byte) (buffer[ISO7816.OFFSET_P1] & P1_CURVE_MASK);
+		if((buffer[ISO7816.OFFSET_P1] & ~(P1_COMPRESSED_POINT | P1_CURVE_MASK)) != 0)
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-		/** Retrieve Public key details*/
-		byte[] pubKeyBuffer = JCSystem.makeTransientByteArray((short) PUBLIC_KEY_LENGTH, JCSystem.CLEAR_ON_RESET);
-		publicKey.getW(pubKeyBuffer,(short) 0);
-		/** Send R-APDU containing public key*/
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) pubKeyBuffer.length);
-		apdu.sendBytesLong(pubKeyBuffer,(short) 0,(short) pubKeyBuffer.length);
+		else if(keyPairs[(short) (2 * curve)] == null)
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		if (slot.curve() != curve) {
+			/** Another curve restarts the association of the slot, INS 12 and 1B use the curve recorded here */
+			slot.state[slot.offset(ORWL_HostSlot.OFFSET_CURVE)] = curve;
+			checkpointAssociation(slot, ORWL_HostSlot.STEP_NONE, (byte) 0, ORWL_HostSlot.STATUS_SEEDX_SAVED);
+		}
+		short index = activeKeyPair();
+		short pointOffset = (short) (index * PUBLIC_KEY_LENGTH);
+		short pointLength = publicPointLength[index];
+		if(format == P1_COMPRESSED_POINT) {
+			/** Compress the cached point into the scratch buffer: 02 or 03 by the parity of Y, then X */
+			short fieldLength = (short) ((short) (pointLength - 1) / 2);
+			scratchBuffer[0] = (byte) (0x02 | (publicPoints[(short) (pointOffset + pointLength - 1)] & 0x01));
+			Util.arrayCopyNonAtomic(publicPoints, (short) (pointOffset + 1), scratchBuffer, (short) 1, fieldLength);
+			sendResponse(apdu, scratchBuffer, (short) 0, (short) (fieldLength + 1));
+		}
+		else
+			/** Send R-APDU containing the public key cached when the current keypair was generated*/
+			sendResponse(apdu, publicPoints, pointOffset, pointLength);
+	}
+
+	/**
+	 * Checks that the ORWL public key is encoded as announced by the compressed point flag of P1 and that its
+	 * length matches the curve of the active keypair, 2f + 1 bytes uncompressed or f + 1 bytes compressed
+	 * @param p1 - P1 of the command
+	 * @param pubKey - buffer holding the ORWL public key
+	 * @param pubKeyOffset - offset of the public key
+	 * @param pubKeyLength - length of the public key
+	 * @exception ISOException - 6A 80 if the encoding does not match the flag or the curve
+	 */
+	private void checkPointEncoding(byte p1, byte[] pubKey, short pubKeyOffset, short pubKeyLength) {
+		byte format = pubKey[pubKeyOffset];
+		short uncompressedLength = publicPointLength[activeKeyPair()];
+		if((p1 & P1_COMPRESSED_POINT) == 0) {
+			if(format != (byte) 0x04 || pubKeyLength != uncompressedLength)
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		else if((format != (byte) 0x02 && format != (byte) 0x03)
+				|| pubKeyLength != (short) ((short) (uncompressedLength - 1) / 2 + 1))
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 	}
 
 	/**
 	 * INS 12 - Generate ECDH Secret Key
-	 * Generate secret key using ECDH algorithm and the public key received and sets the secret key to 3DES algorithm
-     * @param apdu - the incoming APDU consists of the public key
+	 * Generate secret key using ECDH algorithm and the public key received and sets the secret key to the cipher suite
+     * @param apdu - the incoming APDU consists of the public key, P1 - cipher suite 00 - 3DES, 01 - AES-128
+     * 						or'ed with 80 for a compressed public key and 40 for the HMAC authentication response
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void generateSecretKey(APDU apdu){
-		byte[] buffer = apdu.getBuffer();
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
-		if(keyAssociationFlag)
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
+		if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-		/** Retrieve the Public key data sent by ORWL*/
-		byte[] pubKeyBuffer = JCSystem.makeTransientByteArray(bytesRecv, JCSystem.CLEAR_ON_RESET);
-		Util.arrayCopyNonAtomic(buffer,ISO7816.OFFSET_CDATA, pubKeyBuffer, (short)0, bytesRecv);
-		/** Generate shared secret key using ECDH algorithm*/
-		ecdhInstance = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH, false);
-		ecdhInstance.init(privateKey);
-		short secretLen = ecdhInstance.generateSecret(pubKeyBuffer, (short)0, bytesRecv, sharedSecretKey, (short)0);
-		/** Save shared secret key generated*/
-		Util.arrayCopyNonAtomic(sharedSecretKey,(short)0, sharedSecretKey, (short)secretLen, (short) (SHARED_SECRET_KEY_LENGTH - secretLen));
-		/** Set 3DES shared secret key*/
-		desKey.setKey(sharedSecretKey, (short) 0);
+		selectCipherSuite(buffer[ISO7816.OFFSET_P1]);
+		checkPointEncoding(buffer[ISO7816.OFFSET_P1], buffer, ISO7816.OFFSET_CDATA, bytesRecv);
+		computeSecretKey(buffer, ISO7816.OFFSET_CDATA, bytesRecv);
+	}
+
+	/**
+	 * Generate the ECDH secret key from the public key sent by ORWL and set it to the negotiated cipher suite
+	 * @param pubKey - buffer holding the ORWL public key
+	 * @param pubKeyOffset - offset of the public key
+	 * @param pubKeyLength - length of the public key
+	 * @return length of the ECDH secret left at the start of the scratch buffer
+	 * @exception ISOException - 6A 80 if the public key does not fit the host public key record
+	 */
+	private short computeSecretKey(byte[] pubKey, short pubKeyOffset, short pubKeyLength) {
+		ORWL_HostSlot slot = activeSlot();
+		/** The public key is kept in the slot record, it must be checked by checkPointEncoding before the ECDH */
+		if(pubKeyLength <= 0 || pubKeyLength > ORWL_HostSlot.HOST_PUBLIC_KEY_LENGTH)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		incrementCounter(COUNTER_ASSOCIATIONS_STARTED);
+		/** A new ECDH secret key invalidates seedX and the later steps of an interrupted association */
+		checkpointAssociation(slot, ORWL_HostSlot.STEP_NONE, (byte) 0, ORWL_HostSlot.STATUS_SEEDX_SAVED);
+		/** Generate shared secret key using ECDH algorithm into the scratch buffer*/
+		ecdhInstance.init(keyPairs[activeKeyPair()].getPrivate());
+		short secretLen = 0;
+		try {
+			secretLen = ecdhInstance.generateSecret(pubKey, pubKeyOffset, pubKeyLength, scratchBuffer, (short)0);
+		} catch (CryptoException e) {
+			/** Compressed points are optional for the platform, the ORWL device falls back to the uncompressed point */
+			if(pubKey[pubKeyOffset] != (byte) 0x04)
+				ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+			throw e;
+		}
+		Util.arrayCopyNonAtomic(scratchBuffer,(short)0, scratchBuffer, secretLen, (short) (SHARED_SECRET_KEY_LENGTH - secretLen));
+		/** Set shared secret key to the cipher suite, the key object is the only persistent copy*/
+		slot.cipherSuite.setSessionKey(scratchBuffer, (short) 0);
+
+		/**
+		 * Keep the ORWL public key and the fast unlock key SHA-1(secret || ORWL public key) of this static pair,
+		 * the record is not associated yet so both are used only once the association commits
+		 */
+		short pubKeyRecord = slot.offset(ORWL_HostSlot.OFFSET_HOST_PUBLIC_KEY);
+		slot.state[pubKeyRecord] = (byte) pubKeyLength;
+		Util.arrayCopyNonAtomic(pubKey, pubKeyOffset, slot.state, (short) (pubKeyRecord + 1), pubKeyLength);
+		digestinstance.update(scratchBuffer, (short) 0, secretLen);
+		digestinstance.doFinal(pubKey, pubKeyOffset, pubKeyLength, slot.state, slot.offset(ORWL_HostSlot.OFFSET_UNLOCK_KEY));
+		recordWrites((short) 4);
+		checkpointAssociation(slot, ORWL_HostSlot.STEP_SECRET_KEY, (byte) 0, (byte) 0);
+		return secretLen;
+	}
+
+	/**
+	 * Derives seedX, seedY and the ECDH secret key of the association from the ECDH secret and the nonces of both sides.
+	 * The derivation key is SHA-1(secret || ORWL nonce || KeyFOB nonce), SHA-1(derivation key || i) for i = 1 to 4
+	 * gives seedX || seedY || ECDH secret key, each of the suite key length, at KDF_OUTPUT_OFFSET in the scratch buffer
+	 * @param nonce - buffer holding the ORWL nonce
+	 * @param nonceOffset - offset of the ORWL nonce
+	 * @param secretLength - length of the ECDH secret at the start of the scratch buffer
+	 */
+	private void deriveAssociationKeys(byte[] nonce, short nonceOffset, short secretLength) {
+		ORWL_HostSlot slot = activeSlot();
+		/** The KeyFOB nonce stays in the scratch buffer for the response */
+		secureRandom.generateData(scratchBuffer, KDF_CARD_NONCE_OFFSET, KDF_NONCE_LENGTH);
+		digestinstance.update(scratchBuffer, (short) 0, secretLength);
+		digestinstance.update(nonce, nonceOffset, KDF_NONCE_LENGTH);
+		digestinstance.doFinal(scratchBuffer, KDF_CARD_NONCE_OFFSET, KDF_NONCE_LENGTH, scratchBuffer, (short) 0);
+		short outputOffset = KDF_OUTPUT_OFFSET;
+		for (short i = 0; i < (short) kdfLabels.length; i++) {
+			digestinstance.update(scratchBuffer, (short) 0, MessageDigest.LENGTH_SHA);
+			digestinstance.doFinal(kdfLabels, i, (short) 1, scratchBuffer, outputOffset);
+			outputOffset += MessageDigest.LENGTH_SHA;
+		}
+		/** The derived key replaces the ECDH secret key padded by computeSecretKey */
+		slot.cipherSuite.setSessionKey(scratchBuffer, (short) (KDF_OUTPUT_OFFSET + 2 * slot.cipherSuite.getKeyLength()));
+		recordWrites((short) 1);
+	}
+
+	/**
+	 * Records the last completed step of the association with the status bits of the step in one transaction,
+	 * called once the data of the step is written so that INS 25 never reports a step whose data is torn
+	 * @param slot - host slot in association
+	 * @param step - STEP_ constant of the completed step
+	 * @param setBits - STATUS_ bits set by the step
+	 * @param resetBits - STATUS_ bits reset by the step
+	 */
+	private void checkpointAssociation(ORWL_HostSlot slot, byte step, byte setBits, byte resetBits) {
+		JCSystem.beginTransaction();
+		slot.resetStatus(resetBits);
+		slot.setStatus(setBits);
+		slot.state[slot.offset(ORWL_HostSlot.OFFSET_ASSOCIATION_STEP)] = step;
+		commitTransaction();
+	}
+
+	/**
+	 * Checks for ECDH secret key initialization status
+	 */
+	private boolean sessionKeyStatus() {
+		return activeSlot().cipherSuite.isSessionKeyInitialized();
+	}
+
+	/**
+	 * Selects the cipher suite and the authentication response advertised by ORWL for the association
+	 * @param p1 - cipher suite sent in P1 with the compressed point and HMAC flags
+	 * @exception ISOException - 6A 86 if the suite is not supported
+	 */
+	private void selectCipherSuite(byte p1) {
+		ORWL_HostSlot slot = activeSlot();
+		byte suite = (byte) (p1 & ~(P1_COMPRESSED_POINT | P1_HMAC_AUTH));
+		if (suite == ORWL_CipherSuite.SUITE_AES_128)
+			slot.cipherSuite = slot.aesSuite;
+		else if (suite == ORWL_CipherSuite.SUITE_3DES)
+			slot.cipherSuite = slot.des3Suite;
+		else
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		if ((p1 & P1_HMAC_AUTH) != 0)
+			slot.setStatus(ORWL_HostSlot.STATUS_HMAC_AUTH);
+		else
+			slot.resetStatus(ORWL_HostSlot.STATUS_HMAC_AUTH);
 	}
 
 	/**
-	 * Checks for 3DES initialization status
+	 * Derives the HMAC authentication key of the slot from seedY and the ECDH secret key, once per association.
+	 * It is written before the association commits, so a torn write is never used
+	 * @param slot - host slot in association
+	 * @param seedY - buffer holding seedY
+	 * @param seedYOffset - offset of seedY
+	 * @param work - buffer receiving the ECDH secret key for the derivation, wiped afterwards
 	 */
-	private boolean DESKeyStatus() {
-		return desKey.isInitialized();
+	private void deriveAuthKey(ORWL_HostSlot slot, byte[] seedY, short seedYOffset, byte[] work) {
+		short keyLength = slot.cipherSuite.getSessionKey(work, (short) 0);
+		digestinstance.update(seedY, seedYOffset, slot.cipherSuite.getKeyLength());
+		digestinstance.doFinal(work, (short) 0, keyLength, slot.state, slot.offset(ORWL_HostSlot.OFFSET_AUTH_KEY));
+		Util.arrayFillNonAtomic(work, (short) 0, keyLength, (byte) 0x00);
+		recordWrites((short) 1);
+	}
+
+	/**
+	 * Computes HMAC-SHA-1 of a message with a key of the slot
+	 * @param slot - host slot holding the key
+	 * @param keyField - OFFSET_AUTH_KEY, OFFSET_UNLOCK_KEY or OFFSET_TICKET
+	 * @param keyLength - length of the key, at most HMAC_BLOCK_LENGTH
+	 * @param msg - buffer holding the message
+	 * @param msgOffset - offset of the message
+	 * @param msgLength - length of the message
+	 * @param work - buffer of HMAC_BLOCK_LENGTH + 20 bytes holding the padded key and the inner digest, not overlapping the message
+	 * @return length of the HMAC, written at the start of the work buffer
+	 */
+	private short computeHmac(ORWL_HostSlot slot, short keyField, short keyLength, byte[] msg, short msgOffset, short msgLength, byte[] work) {
+		Util.arrayFillNonAtomic(work, (short) 0, HMAC_BLOCK_LENGTH, HMAC_IPAD);
+		short keyOffset = slot.offset(keyField);
+		for (short i = 0; i < keyLength; i++)
+			work[i] ^= slot.state[(short) (keyOffset + i)];
+		digestinstance.update(work, (short) 0, HMAC_BLOCK_LENGTH);
+		digestinstance.doFinal(msg, msgOffset, msgLength, work, HMAC_BLOCK_LENGTH);
+		/** Turn the inner padded key into the outer one */
+		for (short i = 0; i < HMAC_BLOCK_LENGTH; i++)
+			work[i] ^= (byte) (HMAC_IPAD ^ HMAC_OPAD);
+		digestinstance.update(work, (short) 0, HMAC_BLOCK_LENGTH);
+		return digestinstance.doFinal(work, HMAC_BLOCK_LENGTH, MessageDigest.LENGTH_SHA, work, (short) 0);
 	}
 
 	/**
@@ -596,27 +1648,42 @@ public class ORWL_Keypair extends Applet{
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void confirmSecretKey(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
-		short bytesRecv = apdu.setIncomingAndReceive();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
 
 		/**Check for KeyFOB association status and ECDH key status*/
-		if (bytesRecv != (byte)sampleData.length)
+		if (bytesRecv != slot.cipherSuite.paddedLength((short) sampleData.length))
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-		else if(!DESKeyStatus())
+		else if(!sessionKeyStatus())
 			ISOException.throwIt((short) 0x6669);
 		else{
-			/** Initializes ECDH secret value and decrypt the data */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, ISO7816.OFFSET_CDATA, bytesRecv, buffer, (short) 0);
-			/** Compare the decrypted data with the sample data */
-			byte result = Util.arrayCompare(sampleData, (short)0, buffer, (short)0, bytesRecv);
-			if(result != 0)
-				ISOException.throwIt((short) 0x9405);
+			checkConfirmation(buffer, ISO7816.OFFSET_CDATA);
+			/** Steps completed after the confirmation are kept when INS 10 is sent again */
+			if (slot.associationStep() < ORWL_HostSlot.STEP_CONFIRMED)
+				checkpointAssociation(slot, ORWL_HostSlot.STEP_CONFIRMED, (byte) 0, (byte) 0);
 		}
 	}
 
+	/**
+	 * Decrypt the confirmation block sent by ORWL and compare it with the sample data
+	 * @param buffer - buffer holding the sample data padded to the cipher block length and encrypted with ECDH key
+	 * @param offset - offset of the encrypted sample data
+	 * @exception ISOException - 94 05 if the ECDH secret keys do not match
+	 */
+	private void checkConfirmation(byte[] buffer, short offset) {
+		ORWL_HostSlot slot = activeSlot();
+		/** Decrypt the data into the scratch buffer using the ECDH secret key context */
+		slot.cipherSuite.prepare();
+		slot.cipherSuite.sessionDecrypt(buffer, offset, slot.cipherSuite.paddedLength((short) sampleData.length), scratchBuffer, (short) 0);
+		/** Compare the decrypted data with the sample data */
+		byte result = Util.arrayCompare(sampleData, (short)0, scratchBuffer, (short)0, (short) sampleData.length);
+		if(result != 0)
+			ISOException.throwIt((short) 0x9405);
+	}
+
 	/**
 	 * INS 17 - Save all secret Keys
 	 * Save ECDH Secret Key and seed values
@@ -624,21 +1691,34 @@ public class ORWL_Keypair extends Applet{
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void saveSecretKeys(APDU apdu) {
-		short bytesRecv = apdu.setIncomingAndReceive();
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
 
 		/**Check for Generation and exchange of secret keys, CVM pin verification, block and KeyFOB association status */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		else if(cvmPinBlockStatus() )
 			ISOException.throwIt((short) 0x9D61);
 		else if(!cvmPinVerificationStatus())
 			ISOException.throwIt((short) 0x9840);
-		else if(!DESKeyStatus() || !seedXSaveFlag)
+		else if(!sessionKeyStatus() || slot.status(ORWL_HostSlot.STATUS_SEEDX_SAVED) == 0)
 			ISOException.throwIt((short) 0x6669);
-		else
-			keyAssociationFlag = true;
+		else{
+			slot.cipherSuite.setSeedKeys(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_X), slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y));
+			recordWrites((short) 2);
+			if (slot.status(ORWL_HostSlot.STATUS_HMAC_AUTH) != 0)
+				deriveAuthKey(slot, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y), scratchBuffer);
+			prepareKeyPairRotation(slot.curve());
+			/** Commit the association status and the keypair rotation in a single transaction */
+			JCSystem.beginTransaction();
+			slot.setStatus(ORWL_HostSlot.STATUS_KEY_ASSOCIATED);
+			slot.state[slot.offset(ORWL_HostSlot.OFFSET_ASSOCIATION_STEP)] = ORWL_HostSlot.STEP_COMMITTED;
+			rotateKeyPair(slot.curve());
+			commitTransaction();
+			incrementCounter(COUNTER_ASSOCIATIONS_COMMITTED);
+		}
 	}
 
 	/**
@@ -648,25 +1728,411 @@ public class ORWL_Keypair extends Applet{
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void saveShareSeedX(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
-		short bytesRecv = apdu.setIncomingAndReceive();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
 		byte keyLength = buffer[ISO7816.OFFSET_P1];
 
-		/**Check for generation of ECDH key and KeyFOB association status */
-		if (keyLength != (byte)SHARED_SEED_LENGTH)
+		/**Check for seedX length, generation of ECDH key and KeyFOB association status,
+		 * the decryption writes as many bytes as received into the slot record */
+		if (keyLength != (byte) slot.cipherSuite.getKeyLength() || bytesRecv != slot.cipherSuite.paddedLength(keyLength))
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(keyAssociationFlag)
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-		else if(!DESKeyStatus())
+		else if(!sessionKeyStatus())
 			ISOException.throwIt((short) 0x6669);
 		else{
-			/** Initializes ECDH secret value and decrypt the data */
-			cipherInstance.init(desKey, Cipher.MODE_DECRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(buffer, ISO7816.OFFSET_CDATA, bytesRecv, sharedSeedX, (short) 0);
-			seedXSaveFlag = true;
+			/** Decrypt the data into the scratch buffer using the ECDH secret key context */
+			slot.cipherSuite.prepare();
+			slot.cipherSuite.sessionDecrypt(buffer, ISO7816.OFFSET_CDATA, bytesRecv, scratchBuffer, (short) 0);
+			/** A repeated INS 18 replaces a saved seedX, the copy and the checkpoint are committed together so a torn write never reads as saved */
+			JCSystem.beginTransaction();
+			Util.arrayCopy(scratchBuffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_X), bytesRecv);
+			slot.setStatus(ORWL_HostSlot.STATUS_SEEDX_SAVED);
+			slot.state[slot.offset(ORWL_HostSlot.OFFSET_ASSOCIATION_STEP)] = ORWL_HostSlot.STEP_SEED_X;
+			commitTransaction();
 		}
 	}
 
+	/**
+	 * INS 1B - Association bootstrap
+	 * Runs the complete association of INS 12/10/18/13/19/17 in a single command and commits it atomically
+     * @param apdu - the incoming APDU consists of P1 - cipher suite, compressed point, HMAC and 20 key derivation flags, TLV 81 - ORWL public key
+     * 						82 - sample data encrypted with ECDH key
+     * 						83 - seedX encrypted with ECDH key, without key derivation
+     * 						87 - ORWL nonce of 16 bytes, with key derivation
+     * 						86 - CVM pin encrypted with ECDH key
+	 * @return TLV 84 - KeyFOB sample data encrypted with ECDH key, 85 - seedY encrypted with ECDH key or 88 - KeyFOB nonce with key derivation
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void bootstrapAssociation(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
+		/**Check for KeyFOB association status before the cipher suite in P1 is selected */
+		if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		boolean kdfKeys = (buffer[ISO7816.OFFSET_P1] & P1_KDF_KEYS) != 0;
+		selectCipherSuite((byte) (buffer[ISO7816.OFFSET_P1] & ~P1_KDF_KEYS));
+		short seedLength = slot.cipherSuite.getKeyLength();
+		short confirmLength = slot.cipherSuite.paddedLength((short) sampleData.length);
+		short pubKeyOffset = findTag(buffer, ISO7816.OFFSET_CDATA, bytesRecv, TAG_HOST_PUBLIC_KEY, (short) -1);
+		short confirmOffset = findTag(buffer, ISO7816.OFFSET_CDATA, bytesRecv, TAG_CONFIRMATION, confirmLength);
+		short seedXOffset = findTag(buffer, ISO7816.OFFSET_CDATA, bytesRecv, TAG_SEED_X, seedLength);
+		short nonceOffset = findTag(buffer, ISO7816.OFFSET_CDATA, bytesRecv, TAG_HOST_NONCE, KDF_NONCE_LENGTH);
+		short pinLength = slot.cipherSuite.paddedLength((short) cvmData.length);
+		short pinOffset = findTag(buffer, ISO7816.OFFSET_CDATA, bytesRecv, TAG_CVM_PIN, pinLength);
+
+		/**Check for presence of every TLV */
+		if(cvmPinBlockStatus() )
+			ISOException.throwIt((short) 0x9D61);
+		else if(pubKeyOffset < 0 || confirmOffset < 0 || (kdfKeys ? nonceOffset : seedXOffset) < 0 || pinOffset < 0)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		else{
+			/** Generate and confirm the ECDH secret key */
+			short pubKeyLength = (short) (buffer[(short) (pubKeyOffset - 1)] & 0xFF);
+			checkPointEncoding(buffer[ISO7816.OFFSET_P1], buffer, pubKeyOffset, pubKeyLength);
+			short secretLength = computeSecretKey(buffer, pubKeyOffset, pubKeyLength);
+			if (kdfKeys)
+				deriveAssociationKeys(buffer, nonceOffset, secretLength);
+			checkConfirmation(buffer, confirmOffset);
+			/** Decrypt the CVM pin into the scratch buffer and verify it */
+			slot.cipherSuite.sessionDecrypt(buffer, pinOffset, pinLength, scratchBuffer, (short) 0);
+			if(cvm.verify(scratchBuffer, (short) 0, (byte) cvmData.length, CVM.FORMAT_BCD) != (short) 0x00) {
+				sessionResumed[0] = false;
+				ISOException.throwIt((short) 0x9840);
+			}
+
+			if (kdfKeys)
+				/** Move the derived seedX and seedY to the start of the scratch buffer */
+				Util.arrayCopyNonAtomic(scratchBuffer, KDF_OUTPUT_OFFSET, scratchBuffer, (short) 0, (short) (2 * seedLength));
+			else {
+				/** Decrypt seedX and generate seedY into the scratch buffer */
+				slot.cipherSuite.sessionDecrypt(buffer, seedXOffset, seedLength, scratchBuffer, (short) 0);
+				secureRandom.generateData(scratchBuffer, seedLength, seedLength);
+			}
+			slot.cipherSuite.setSeedKeys(scratchBuffer, (short) 0, scratchBuffer, seedLength);
+			recordWrites((short) 2);
+			/** The command data has been used, the APDU buffer serves the derivation */
+			if (slot.status(ORWL_HostSlot.STATUS_HMAC_AUTH) != 0)
+				deriveAuthKey(slot, scratchBuffer, seedLength, buffer);
+			prepareKeyPairRotation(slot.curve());
+
+			/** Commit the seeds, the association status and the keypair rotation in a single transaction */
+			JCSystem.beginTransaction();
+			Util.arrayCopy(scratchBuffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_X), seedLength);
+			Util.arrayCopy(scratchBuffer, seedLength, slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y), seedLength);
+			slot.setStatus((byte) (ORWL_HostSlot.STATUS_SEEDX_SAVED | ORWL_HostSlot.STATUS_KEY_ASSOCIATED));
+			slot.state[slot.offset(ORWL_HostSlot.OFFSET_ASSOCIATION_STEP)] = ORWL_HostSlot.STEP_COMMITTED;
+			rotateKeyPair(slot.curve());
+			commitTransaction();
+			incrementCounter(COUNTER_ASSOCIATIONS_COMMITTED);
+
+			/** Build R-APDU consists of the encrypted KeyFOB sample data and seedY value*/
+			short offset = 0;
+			Util.arrayFillNonAtomic(scratchBuffer, (short) 0, confirmLength, (byte) 0x00);
+			Util.arrayCopyNonAtomic(cardSampleData, (short) 0, scratchBuffer, (short) 0, (short) cardSampleData.length);
+			buffer[offset++] = TAG_CARD_CONFIRMATION;
+			buffer[offset++] = (byte) confirmLength;
+			offset += slot.cipherSuite.sessionEncrypt(scratchBuffer, (short) 0, confirmLength, buffer, offset);
+			if (kdfKeys) {
+				/** The ORWL device derives seedY itself, it only needs the KeyFOB nonce */
+				buffer[offset++] = TAG_CARD_NONCE;
+				buffer[offset++] = (byte) KDF_NONCE_LENGTH;
+				offset = Util.arrayCopyNonAtomic(scratchBuffer, KDF_CARD_NONCE_OFFSET, buffer, offset, KDF_NONCE_LENGTH);
+			}
+			else {
+				buffer[offset++] = TAG_SEED_Y;
+				buffer[offset++] = (byte) seedLength;
+				offset += slot.cipherSuite.sessionEncrypt(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y), seedLength, buffer, offset);
+			}
+			sendResponse(apdu, buffer, (short) 0, offset);
+		}
+	}
+
+	/**
+	 * INS 25 - Resume association
+	 * Reports the last step of the association completed before a field loss, the ORWL device continues
+	 * with the next command instead of a new ECDH key agreement. The ORWL public key shows which of its keys is in use
+     * @param apdu - the incoming APDU
+	 * @return TLV 80 - last completed step 00 - none, 01 - INS 12, 02 - INS 10, 03 - INS 18, 04 - INS 19, 05 - INS 17 or 1B
+	 * 			81 - P1 of the association, cipher suite and HMAC flag, 82 - ORWL public key, present from step 01
+	 * 			83 - elliptic curve selected with INS 11
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void resumeAssociation(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		/**Check for P1 Parameter value */
+		checkForP1Val(buffer);
+		short bytesRecv = receiveCommandData(apdu);
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		byte step = slot.associationStep();
+		short offset = 0;
+		buffer[offset++] = TAG_ASSOCIATION_STEP;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = step;
+		buffer[offset++] = TAG_ASSOCIATION_P1;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = (byte) (slot.cipherSuite.getSuite() | (slot.status(ORWL_HostSlot.STATUS_HMAC_AUTH) != 0 ? P1_HMAC_AUTH : 0));
+		if (step != ORWL_HostSlot.STEP_NONE) {
+			short pubKeyRecord = slot.offset(ORWL_HostSlot.OFFSET_HOST_PUBLIC_KEY);
+			short pubKeyLength = (short) (slot.state[pubKeyRecord] & 0xFF);
+			buffer[offset++] = TAG_ORWL_PUBLIC_KEY;
+			buffer[offset++] = (byte) pubKeyLength;
+			offset = Util.arrayCopyNonAtomic(slot.state, (short) (pubKeyRecord + 1), buffer, offset, pubKeyLength);
+		}
+		buffer[offset++] = TAG_ASSOCIATION_CURVE;
+		buffer[offset++] = (byte) 0x01;
+		buffer[offset++] = slot.curve();
+		sendResponse(apdu, buffer, (short) 0, offset);
+	}
+
+	/**
+	 * INS 26 - Prepare keypair
+	 * Regenerates the keypairs retired by associations, the ORWL device sends it while idle
+	 * so that a further association in the same selection does not wait on key generation in INS 17 or 1B
+     * @param apdu - the incoming APDU
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void prepareKeyPair(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		/**Check for P1 Parameter value */
+		checkForP1Val(buffer);
+		short bytesRecv = receiveCommandData(apdu);
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		prepareKeyPairs();
+	}
+
+	/**
+	 * Returns the host slot selected with INS 1C in this card session, slot 0 when no host was selected
+	 */
+	private ORWL_HostSlot activeSlot() {
+		return hostSlots[activeHost[0]];
+	}
+
+	/**
+	 * Searches the slot associated with a host identifier. Every slot is compared,
+	 * so the lookup takes the same time whichever slot holds the host
+	 * @param hostId - host identifier of the ORWL device
+	 * @return index of the slot or -1 if the host is not associated
+	 */
+	private short findHostSlot(byte hostId) {
+		short found = -1;
+		for (short i = 0; i < HOST_SLOT_COUNT; i++) {
+			ORWL_HostSlot slot = hostSlots[i];
+			if ((i == 0 || slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) != 0) && slot.hostId() == hostId && found < 0)
+				found = i;
+		}
+		return found;
+	}
+
+	/**
+	 * Clears the association of a host slot and binds it to a host identifier. The status is cleared
+	 * in a transaction first, so an interrupted wipe never leaves an associated slot with partial data
+	 * @param slot - host slot to clear
+	 * @param hostId - host identifier the slot is bound to
+	 */
+	private void clearHostSlot(ORWL_HostSlot slot, byte hostId) {
+		JCSystem.beginTransaction();
+		slot.clearStatus(hostId);
+		commitTransaction();
+		recordWrites(slot.wipe());
+	}
+
+	/**
+	 * INS 1C - Select host
+	 * Selects the host slot of an ORWL device for the card session, a host without association
+	 * gets a free slot for its association process
+     * @param apdu - the incoming APDU, P1 - host identifier
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void selectHost(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		byte hostId = buffer[ISO7816.OFFSET_P1];
+		short bytesRecv = receiveCommandData(apdu);
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		short index = findHostSlot(hostId);
+		if (index < 0) {
+			/**
+			 * Take the free slot holding an association of this host left unfinished, so that it can be resumed,
+			 * otherwise the first free slot, an association left unfinished by another host is cleared
+			 */
+			for (short i = (short) (HOST_SLOT_COUNT - 1); i > 0; i--) {
+				if (hostSlots[i].status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0 && (index < 0 || hostSlots[index].hostId() != hostId))
+					index = i;
+			}
+			if (index < 0)
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			if (hostSlots[index].hostId() != hostId)
+				clearHostSlot(hostSlots[index], hostId);
+		}
+		activeHost[0] = index;
+	}
+
+	/**
+	 * INS 1D - List or free host slots
+	 * P1 00 lists every slot, P1 01 clears the association of the host identifier sent in the data field
+     * @param apdu - the incoming APDU, P1 - operation and host identifier for P1 01
+	 * @return TLV 80 - slot index, host identifier, association status and cipher suite, repeated per slot
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void manageHostSlots(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		short bytesRecv = receiveCommandData(apdu);
+		if (buffer[ISO7816.OFFSET_P1] == P1_LIST_HOST_SLOTS) {
+			if (bytesRecv != (byte)0x00)
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			short offset = 0;
+			for (short i = 0; i < HOST_SLOT_COUNT; i++) {
+				ORWL_HostSlot slot = hostSlots[i];
+				buffer[offset++] = TAG_HOST_SLOT;
+				buffer[offset++] = (byte) 0x04;
+				buffer[offset++] = (byte) i;
+				buffer[offset++] = slot.hostId();
+				buffer[offset++] = slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED);
+				buffer[offset++] = slot.cipherSuite.getSuite();
+			}
+			sendResponse(apdu, buffer, (short) 0, offset);
+		}
+		else if (buffer[ISO7816.OFFSET_P1] != P1_FREE_HOST_SLOT)
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		/**Check for host identifier length, CVM pin verification, block status and the host association */
+		else if (bytesRecv != (byte)0x01)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		else if(cvmPinBlockStatus() )
+			ISOException.throwIt((short) 0x9D61);
+		else if(!cvmPinVerificationStatus())
+			ISOException.throwIt((short) 0x9840);
+		else{
+			short index = findHostSlot(buffer[ISO7816.OFFSET_CDATA]);
+			if (index < 0)
+				ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+			ORWL_HostSlot slot = hostSlots[index];
+			clearHostSlot(slot, slot.hostId());
+		}
+	}
+
+	/**
+	 * INS 1E - Issue resumption ticket
+	 * Issue a ticket that restores the CVM pin verification of the selected host with INS 1F after a reconnect
+     * @param apdu - the incoming APDU
+	 * @return Resumption ticket encrypted with ECDH key
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void issueTicket(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		/**Check for P1 Parameter value */
+		checkForP1Val(buffer);
+		short bytesRecv = receiveCommandData(apdu);
+		/**Check for CVM pin verification, block and Paired key association status */
+		if (bytesRecv != (byte)0x00)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		else if(cvmPinBlockStatus() )
+			ISOException.throwIt((short) 0x9D61);
+		else if(!cvmPinVerificationStatus())
+			ISOException.throwIt((short) 0x9840);
+		else if(slot.status(ORWL_HostSlot.STATUS_KEY_ASSOCIATED) == 0)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		else
+			sendTicket(apdu, slot);
+	}
+
+	/**
+	 * INS 1F - Resume session
+	 * Restore the CVM pin verification with the ticket issued for the selected host. P1 00 returns a challenge,
+	 * P1 01 answers it with HMAC-SHA-1 of the challenge keyed with the ticket, the ticket is used once and the next ticket is returned
+     * @param apdu - the incoming APDU, P1 00 without data or P1 01 with the HMAC of the challenge
+	 * @return Challenge for P1 00, next resumption ticket encrypted with ECDH key for P1 01
+     * @exception ISOException - with the response bytes per ISO 7816-4
+     */
+	private void resumeSession(APDU apdu) {
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		byte p1 = buffer[ISO7816.OFFSET_P1];
+		short bytesRecv = receiveCommandData(apdu);
+		/**Check for P1 Parameter value, proof length, CVM pin block, Paired key association and ticket status */
+		if (p1 != P1_RESUME_CHALLENGE && p1 != P1_RESUME_PROOF)
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		else if (bytesRecv != (p1 == P1_RESUME_CHALLENGE ? (short) 0 : MessageDigest.LENGTH_SHA))
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		else if(cvmPinBlockStatus() )
+			ISOException.throwIt((short) 0x9D61);
+		else if(!slot.hasStatus((byte) (ORWL_HostSlot.STATUS_KEY_ASSOCIATED | ORWL_HostSlot.STATUS_TICKET_VALID)))
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		else if (p1 == P1_RESUME_CHALLENGE) {
+			/** A fresh challenge for every attempt, a recorded answer never matches it */
+			secureRandom.generateData(resumeChallenge, (short) 0, RESUME_CHALLENGE_LENGTH);
+			resumeChallengeSlot[0] = (short) (activeHost[0] + 1);
+			sendResponse(apdu, resumeChallenge, (short) 0, RESUME_CHALLENGE_LENGTH);
+		}
+		else {
+			/** The challenge is answered once, for the host slot it was issued to */
+			if (resumeChallengeSlot[0] != (short) (activeHost[0] + 1))
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			resumeChallengeSlot[0] = 0;
+			computeHmac(slot, ORWL_HostSlot.OFFSET_TICKET, ORWL_HostSlot.RESUME_TICKET_LENGTH, resumeChallenge, (short) 0,
+					RESUME_CHALLENGE_LENGTH, scratchBuffer);
+			/** A wrong answer invalidates the issued ticket */
+			if(Util.arrayCompare(buffer, ISO7816.OFFSET_CDATA, scratchBuffer, (short) 0, MessageDigest.LENGTH_SHA) != 0) {
+				slot.resetStatus(ORWL_HostSlot.STATUS_TICKET_VALID);
+				recordWrites((short) 1);
+				ISOException.throwIt((short) 0x9840);
+			}
+			sessionResumed[0] = true;
+			sendTicket(apdu, slot);
+		}
+	}
+
+	/**
+	 * Generate a new resumption ticket for the host slot, replacing the previous one, and send it encrypted with ECDH key
+	 * @param apdu - the outgoing APDU
+	 * @param slot - host slot the ticket is bound to
+	 */
+	private void sendTicket(APDU apdu, ORWL_HostSlot slot) {
+		byte[] buffer = apdu.getBuffer();
+		secureRandom.generateData(scratchBuffer, (short) 0, ORWL_HostSlot.RESUME_TICKET_LENGTH);
+		/** A torn copy only makes the next resumption fail, the ORWL device then verifies the CVM pin again */
+		slot.resetStatus(ORWL_HostSlot.STATUS_TICKET_VALID);
+		Util.arrayCopyNonAtomic(scratchBuffer, (short) 0, slot.state, slot.offset(ORWL_HostSlot.OFFSET_TICKET), ORWL_HostSlot.RESUME_TICKET_LENGTH);
+		slot.setStatus(ORWL_HostSlot.STATUS_TICKET_VALID);
+		recordWrites((short) 3);
+		/** Encrypt the ticket using the ECDH secret key context */
+		slot.cipherSuite.prepare();
+		short length = slot.cipherSuite.sessionEncrypt(scratchBuffer, (short) 0, ORWL_HostSlot.RESUME_TICKET_LENGTH, buffer, (short) 0);
+		sendResponse(apdu, buffer, (short) 0, length);
+	}
+
+	/**
+	 * Searches a TLV list with single byte tags and lengths
+	 * @param buffer - buffer holding the TLV list
+	 * @param offset - offset of the TLV list
+	 * @param length - length of the TLV list
+	 * @param tag - tag to search
+	 * @param expectedLength - required value length or -1 for any length
+	 * @return offset of the value or -1 if the tag is absent or has a different length
+	 */
+	private short findTag(byte[] buffer, short offset, short length, byte tag, short expectedLength) {
+		short end = (short) (offset + length);
+		while((short) (offset + 2) <= end) {
+			short valueLength = (short) (buffer[(short) (offset + 1)] & 0xFF);
+			short valueOffset = (short) (offset + 2);
+			if((short) (valueOffset + valueLength) > end)
+				break;
+			if(buffer[offset] == tag) {
+				if(expectedLength >= 0 && valueLength != expectedLength)
+					break;
+				return valueOffset;
+			}
+			offset = (short) (valueOffset + valueLength);
+		}
+		return (short) -1;
+	}
+
 	/**
 	 * INS 19 - Generate and Save seedY
 	 * Generate and Save the shared seedY
@@ -675,32 +2141,33 @@ public class ORWL_Keypair extends Applet{
      * @exception ISOException - with the response bytes per ISO 7816-4
      */
 	private void retrieveShareSeedY(APDU apdu) {
-		byte[] buffer = apdu.getBuffer();
-		byte bytesRecv = (byte) apdu.setIncomingAndReceive();
+		byte[] buffer = commandBuffer(apdu);
+		ORWL_HostSlot slot = activeSlot();
+		short bytesRecv = receiveCommandData(apdu);
 		/**Check for P1 Parameter value */
 		checkForP1Val(buffer);
 
 		/**Check for generation of ECDH key and KeyFOB association status */
 		if (bytesRecv != (byte)0x00)
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		else if(keyAssociationFlag || !seedXSaveFlag)
+		else if(slot.status((byte) (ORWL_HostSlot.STATUS_KEY_ASSOCIATED | ORWL_HostSlot.STATUS_SEEDX_SAVED)) != ORWL_HostSlot.STATUS_SEEDX_SAVED)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-		else if(!DESKeyStatus())
+		else if(!sessionKeyStatus())
 			ISOException.throwIt((short) 0x6669);
 		else{
-			/**Generate random value of 24 bytes */
-			randomData.generateData(sharedSeedY, (short)0x00, SHARED_SEED_LENGTH);
-
-			/** Initializes ECDH secret value and encrypt the data */
-			cipherInstance.init(desKey, Cipher.MODE_ENCRYPT, IVVal, (short) 0, (short) IVVal.length);
-			cipherInstance.doFinal(sharedSeedY, (short) 0, SHARED_SEED_LENGTH, buffer, (short) 0);
+			/**Generate random value of the suite key length */
+			short seedLength = slot.cipherSuite.getKeyLength();
+			secureRandom.generateData(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y), seedLength);
+			recordWrites((short) 1);
+			/** INS 19 can be sent again when its response was lost, it replaces seedY */
+			checkpointAssociation(slot, ORWL_HostSlot.STEP_SEED_Y, (byte) 0, (byte) 0);
+
+			/** Encrypt the data using the ECDH secret key context */
+			slot.cipherSuite.prepare();
+			slot.cipherSuite.sessionEncrypt(slot.state, slot.offset(ORWL_HostSlot.OFFSET_SEED_Y), seedLength, buffer, (short) 0);
 			/** Send R-APDU consists of seedY value*/
-			apdu.setOutgoing();
-			apdu.setOutgoingLength((short) SHARED_SEED_LENGTH );
-			apdu.sendBytesLong(buffer,(short) 0, (short) SHARED_SEED_LENGTH );
+			sendResponse(apdu, buffer, (short) 0, seedLength);
 		}
 	}
 
 }
-
-